@@ -2,6 +2,7 @@ package com.studio4plus.homerplayer;
 
 import android.content.Context;
 
+import com.studio4plus.homerplayer.filescanner.SavedStateLookup;
 import com.studio4plus.homerplayer.model.Storage;
 
 import javax.inject.Named;
@@ -28,4 +29,9 @@ public class AudioBookManagerModule {
     Storage provideStorage(Context context) {
         return new Storage(context);
     }
+
+    @Provides
+    SavedStateLookup provideSavedStateLookup(Storage storage) {
+        return storage;
+    }
 }
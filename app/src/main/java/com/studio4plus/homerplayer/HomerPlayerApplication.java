@@ -13,6 +13,7 @@ import com.crashlytics.android.Crashlytics;
 import com.crashlytics.android.core.CrashlyticsCore;
 import com.flurry.android.FlurryAgent;
 import com.studio4plus.homerplayer.analytics.AnalyticsTracker;
+import com.studio4plus.homerplayer.model.Storage;
 import com.studio4plus.homerplayer.ui.HomeActivity;
 import com.studio4plus.homerplayer.util.VersionUtil;
 import com.studio4plus.homerplayer.service.NotificationUtil;
@@ -35,9 +36,11 @@ public class HomerPlayerApplication extends Application {
 
     private ApplicationComponent component;
     private MediaStoreUpdateObserver mediaStoreUpdateObserver;
+    private StorageMountReceiver storageMountReceiver;
 
     @Inject public GlobalSettings globalSettings;
     @Inject public AnalyticsTracker analyticsTracker;  // Force creation of the tracker early.
+    @Inject public Storage storage;
 
     @Override
     public void onCreate() {
@@ -63,6 +66,9 @@ public class HomerPlayerApplication extends Application {
         getContentResolver().registerContentObserver(
                 MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mediaStoreUpdateObserver);
 
+        storageMountReceiver = new StorageMountReceiver();
+        registerReceiver(storageMountReceiver, StorageMountReceiver.createIntentFilter());
+
         HomeActivity.setEnabled(this, globalSettings.isAnyKioskModeEnabled());
 
         if (Build.VERSION.SDK_INT >= 26)
@@ -74,6 +80,17 @@ public class HomerPlayerApplication extends Application {
         super.onTerminate();
         getContentResolver().unregisterContentObserver(mediaStoreUpdateObserver);
         mediaStoreUpdateObserver = null;
+        unregisterReceiver(storageMountReceiver);
+        storageMountReceiver = null;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // In the background the process may be killed at any time, write the changes now
+        // instead of after the delay. Not waiting for them, it would block the main thread.
+        if (level >= TRIM_MEMORY_UI_HIDDEN)
+            storage.flush(false);
     }
 
     public static ApplicationComponent getComponent(Context context) {
@@ -0,0 +1,31 @@
+package com.studio4plus.homerplayer;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import com.studio4plus.homerplayer.util.FilesystemUtil;
+
+/**
+ * Drop the storage volumes resolved by FilesystemUtil when storage is mounted or unmounted.
+ */
+public class StorageMountReceiver extends BroadcastReceiver {
+
+    public static IntentFilter createIntentFilter() {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        // Media broadcasts are only delivered to filters with the file scheme.
+        filter.addDataScheme("file");
+        return filter;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        FilesystemUtil.invalidateVolumes();
+    }
+}
@@ -0,0 +1,20 @@
+package com.studio4plus.homerplayer.events;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * Posted by the LibraryWatcher when files in an audio book directory have changed.
+ */
+public class AudioBookDirectoryChangedEvent {
+    /**
+     * The directory of the book that has changed or null if the change can't be attributed to
+     * a single book and all audio book directories need to be scanned.
+     */
+    public final @Nullable File bookDirectory;
+
+    public AudioBookDirectoryChangedEvent(@Nullable File bookDirectory) {
+        this.bookDirectory = bookDirectory;
+    }
+}
@@ -1,5 +1,6 @@
 package com.studio4plus.homerplayer.events;
 
+import com.studio4plus.homerplayer.model.Library;
 import com.studio4plus.homerplayer.model.LibraryContentType;
 
 /**
@@ -7,9 +8,11 @@ import com.studio4plus.homerplayer.model.LibraryContentType;
  */
 public class AudioBooksChangedEvent {
 
+    public final Library library;
     public final LibraryContentType contentType;
 
-    public AudioBooksChangedEvent(LibraryContentType contentType) {
-        this.contentType = contentType;
+    public AudioBooksChangedEvent(Library library) {
+        this.library = library;
+        this.contentType = library.contentType;
     }
 }
@@ -0,0 +1,7 @@
+package com.studio4plus.homerplayer.events;
+
+/**
+ * An event sent when playback of a book is started, before its durations are known.
+ */
+public class PlaybackStartedEvent {
+}
@@ -0,0 +1,99 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Environment;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+
+import com.crashlytics.android.Crashlytics;
+import com.studio4plus.homerplayer.util.FilesystemUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class AndroidScanEnvironment implements ScanEnvironment {
+
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.SIZE,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.DATE_ADDED
+    };
+
+    private final @NonNull Context applicationContext;
+    private final @NonNull String audioBooksDirectoryName;
+
+    AndroidScanEnvironment(
+            @NonNull Context applicationContext, @NonNull String audioBooksDirectoryName) {
+        this.applicationContext = applicationContext;
+        this.audioBooksDirectoryName = audioBooksDirectoryName;
+    }
+
+    @NonNull
+    @Override
+    public List<File> listAudioBooksDirectories() {
+        List<File> dirsToScan = FilesystemUtil.listRootDirs(applicationContext);
+        File defaultStorage = Environment.getExternalStorageDirectory();
+        if (!containsByValue(dirsToScan, defaultStorage))
+            dirsToScan.add(defaultStorage);
+
+        List<File> audioBooksDirs = new ArrayList<>(dirsToScan.size());
+        for (File rootDir : dirsToScan)
+            audioBooksDirs.add(new File(rootDir, audioBooksDirectoryName));
+        return audioBooksDirs;
+    }
+
+    @NonNull
+    @Override
+    public MediaStoreIndex queryMediaStore() {
+        String directoryMarker = File.separator + audioBooksDirectoryName + File.separator;
+        ContentResolver contentResolver = applicationContext.getContentResolver();
+        Cursor cursor;
+        try {
+            cursor = contentResolver.query(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                    PROJECTION,
+                    MediaStore.Audio.Media.DATA + " LIKE ?",
+                    new String[] { "%" + directoryMarker + "%" },
+                    null);
+        } catch (RuntimeException e) {
+            // E.g. a SecurityException, the filesystem scan doesn't need the MediaStore.
+            Crashlytics.logException(e);
+            return MediaStoreIndex.EMPTY;
+        }
+        if (cursor == null)
+            return MediaStoreIndex.EMPTY;
+
+        MediaStoreIndex.Builder builder = new MediaStoreIndex.Builder(audioBooksDirectoryName);
+        try {
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(0);
+                if (path != null)
+                    builder.addFile(path, cursor.getLong(1), cursor.getLong(2), cursor.getLong(3));
+            }
+        } finally {
+            cursor.close();
+        }
+        return builder.build();
+    }
+
+    @NonNull
+    @Override
+    public FilesystemAccess createFilesystemAccess(@NonNull AtomicInteger callCounter) {
+        return Build.VERSION.SDK_INT >= 21
+                ? new OsFilesystemAccess(callCounter)
+                : new FilesystemAccess(callCounter);
+    }
+
+    private static <Type> boolean containsByValue(List<Type> items, Type needle) {
+        for (Type item : items)
+            if (item.equals(needle))
+                return true;
+        return false;
+    }
+}
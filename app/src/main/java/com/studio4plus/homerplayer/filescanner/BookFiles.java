@@ -0,0 +1,151 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The audio files of a book, in order, stored compactly.
+ *
+ * Instead of a File with the absolute path for each file, the book directory is stored once,
+ * the paths of its subdirectories once each and the file names are packed as UTF-8 into a
+ * single byte array. File objects are created on demand, e.g. for playback.
+ */
+public class BookFiles {
+
+    public static class Builder {
+        private final @NonNull File directory;
+        private final @NonNull Map<String, Integer> subdirectoryIndexes = new HashMap<>();
+        private final @NonNull List<String> subdirectories = new ArrayList<>();
+        private final @NonNull ByteArrayOutputStream names = new ByteArrayOutputStream();
+        private int[] fileSubdirectories = new int[16];
+        private int[] nameEnds = new int[16];
+        private int count;
+
+        public Builder(@NonNull File directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Add a file by its path relative to the book directory, starting with the separator.
+         */
+        @NonNull
+        public Builder add(@NonNull String relativePath) {
+            int separatorIndex = relativePath.lastIndexOf(File.separatorChar);
+            String subdirectory = relativePath.substring(0, Math.max(0, separatorIndex));
+            Integer subdirectoryIndex = subdirectoryIndexes.get(subdirectory);
+            if (subdirectoryIndex == null) {
+                subdirectoryIndex = subdirectories.size();
+                subdirectories.add(subdirectory);
+                subdirectoryIndexes.put(subdirectory, subdirectoryIndex);
+            }
+            byte[] name = relativePath.substring(separatorIndex + 1).getBytes(Charsets.UTF_8);
+            names.write(name, 0, name.length);
+
+            if (count == nameEnds.length) {
+                nameEnds = Arrays.copyOf(nameEnds, count * 2);
+                fileSubdirectories = Arrays.copyOf(fileSubdirectories, count * 2);
+            }
+            fileSubdirectories[count] = subdirectoryIndex;
+            nameEnds[count] = names.size();
+            ++count;
+            return this;
+        }
+
+        @NonNull
+        public BookFiles build() {
+            return new BookFiles(
+                    directory,
+                    subdirectories.toArray(new String[subdirectories.size()]),
+                    Arrays.copyOf(fileSubdirectories, count),
+                    names.toByteArray(),
+                    Arrays.copyOf(nameEnds, count));
+        }
+    }
+
+    private final @NonNull String directoryPath;
+    // Paths relative to the book directory, empty for the book directory itself.
+    private final @NonNull String[] subdirectories;
+    private final @NonNull int[] fileSubdirectories;
+    private final @NonNull byte[] names;
+    private final @NonNull int[] nameEnds;
+    // Indexes of the files by relative path, built when first needed, e.g. to find the files
+    // reported by the player. Only a few books need it.
+    private volatile @Nullable Map<String, Integer> indexes;
+
+    private BookFiles(@NonNull File directory,
+                      @NonNull String[] subdirectories,
+                      @NonNull int[] fileSubdirectories,
+                      @NonNull byte[] names,
+                      @NonNull int[] nameEnds) {
+        this.directoryPath = directory.getPath();
+        this.subdirectories = subdirectories;
+        this.fileSubdirectories = fileSubdirectories;
+        this.names = names;
+        this.nameEnds = nameEnds;
+    }
+
+    public int size() {
+        return nameEnds.length;
+    }
+
+    @NonNull
+    public File get(int index) {
+        return new File(directoryPath + getRelativePath(index));
+    }
+
+    /**
+     * The path relative to the book directory, starting with the separator.
+     */
+    @NonNull
+    public String getRelativePath(int index) {
+        return subdirectories[fileSubdirectories[index]] + File.separator + getName(index);
+    }
+
+    /**
+     * Returns the index of the file, -1 if it's not in the book.
+     */
+    public int indexOf(@NonNull File file) {
+        String path = file.getPath();
+        if (!path.startsWith(directoryPath))
+            return -1;
+        return indexOfRelativePath(path.substring(directoryPath.length()));
+    }
+
+    /**
+     * Returns the index of the file with the path relative to the book directory (see
+     * getRelativePath), -1 if it's not in the book.
+     */
+    public int indexOfRelativePath(@NonNull String relativePath) {
+        Integer index = getIndexes().get(relativePath);
+        return index != null ? index : -1;
+    }
+
+    @NonNull
+    private Map<String, Integer> getIndexes() {
+        Map<String, Integer> result = indexes;
+        if (result == null) {
+            final int count = size();
+            result = new HashMap<>(count * 2);
+            for (int i = 0; i < count; ++i)
+                result.put(getRelativePath(i), i);
+            indexes = result;
+        }
+        return result;
+    }
+
+    @NonNull
+    private String getName(int index) {
+        int start = index > 0 ? nameEnds[index - 1] : 0;
+        return new String(names, start, nameEnds[index] - start, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,37 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * Attributes of a directory entry, read once by FilesystemAccess and passed along to avoid
+ * querying the filesystem again.
+ */
+class FileAttributes {
+
+    final @NonNull File file;
+    final @NonNull String name;
+    final boolean isDirectory;
+    // Zero for directories.
+    final long length;
+    // Zero for files if not available.
+    final long lastModified;
+    // Identifies the file on its device, null if not available.
+    final @Nullable Object fileKey;
+
+    FileAttributes(@NonNull File file,
+                   @NonNull String name,
+                   boolean isDirectory,
+                   long length,
+                   long lastModified,
+                   @Nullable Object fileKey) {
+        this.file = file;
+        this.name = name;
+        this.isDirectory = isDirectory;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.fileKey = fileKey;
+    }
+}
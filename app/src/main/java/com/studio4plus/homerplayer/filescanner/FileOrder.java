@@ -0,0 +1,89 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+
+import java.text.Collator;
+import java.util.Arrays;
+
+/**
+ * The order of files in a book and which of them are included. It affects the book id and the
+ * saved positions (file indices) so it can't be changed for books that have been played.
+ */
+enum FileOrder {
+    /**
+     * Case insensitive comparison of the names, "Chapter 10" comes before "Chapter 2".
+     * Used by books scanned before the natural order was introduced. Includes all audio
+     * files, like the scans back then.
+     */
+    LEGACY,
+    /**
+     * Natural order of the names, see NaturalSortKey. Skips audio files that are too short to
+     * be played.
+     */
+    NATURAL;
+
+    boolean includesShortFiles() {
+        return this == LEGACY;
+    }
+
+    /**
+     * Returns the indices of names in sorted order. The sort key of each name is computed
+     * only once.
+     */
+    @NonNull
+    int[] sort(@NonNull String[] names) {
+        Entry[] entries = new Entry[names.length];
+        if (this == NATURAL) {
+            // Collators are not thread safe, getInstance returns a new one.
+            Collator collator = Collator.getInstance();
+            collator.setStrength(Collator.SECONDARY);
+            for (int i = 0; i < names.length; ++i)
+                entries[i] = new NaturalEntry(i, NaturalSortKey.create(collator, names[i]));
+        } else {
+            for (int i = 0; i < names.length; ++i)
+                entries[i] = new LegacyEntry(i, names[i]);
+        }
+
+        Arrays.sort(entries);
+        int[] indices = new int[entries.length];
+        for (int i = 0; i < entries.length; ++i)
+            indices[i] = entries[i].index;
+        return indices;
+    }
+
+    private static abstract class Entry implements Comparable<Entry> {
+        final int index;
+
+        Entry(int index) {
+            this.index = index;
+        }
+    }
+
+    private static class LegacyEntry extends Entry {
+        private final @NonNull String name;
+
+        LegacyEntry(int index, @NonNull String name) {
+            super(index);
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo(@NonNull Entry other) {
+            return name.compareToIgnoreCase(((LegacyEntry) other).name);
+        }
+    }
+
+    private static class NaturalEntry extends Entry {
+        private final @NonNull NaturalSortKey key;
+
+        NaturalEntry(int index, @NonNull NaturalSortKey key) {
+            super(index);
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(@NonNull Entry other) {
+            return key.compareTo(((NaturalEntry) other).key);
+        }
+    }
+}
@@ -2,43 +2,208 @@ package com.studio4plus.homerplayer.filescanner;
 
 import android.content.Context;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.crashlytics.android.Crashlytics;
 import com.studio4plus.homerplayer.ApplicationScope;
 import com.studio4plus.homerplayer.concurrency.BackgroundExecutor;
+import com.studio4plus.homerplayer.concurrency.SimpleDeferred;
 import com.studio4plus.homerplayer.concurrency.SimpleFuture;
 import com.studio4plus.homerplayer.util.MediaScannerUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import de.greenrobot.event.EventBus;
+
 @ApplicationScope
 public class FileScanner {
-    public static final String SAMPLE_BOOK_FILE_NAME = ".sample";
+
+    public static final String SAMPLE_BOOK_FILE_NAME = ScanFilesTask.SAMPLE_BOOK_FILE_NAME;
+    private static final String SCAN_CACHE_FILE_NAME = "scan_cache";
+    // Scanning is bound by storage access, not the CPU. A few threads are enough to keep
+    // both the internal storage and an SD card busy.
+    private static final int SCAN_THREAD_COUNT = 4;
+    private static final long SCAN_THREAD_KEEP_ALIVE_SECONDS = 30;
 
     private final String audioBooksDirectoryName;
     private final BackgroundExecutor ioExecutor;
     private final Context applicationContext;
+    private final ScanEnvironment scanEnvironment;
+    private final ScanCache scanCache;
+    private final SavedStateLookup savedStateLookup;
+    private final ExecutorService scanWorkers;
+    private final Handler mainThreadHandler;
+    private final LibraryWatcher libraryWatcher;
+
+    // Full scans are run one at a time. A scan requested while another one is running
+    // cancels it and is queued, further requests are merged into the queued one.
+    // Accessed only on the main thread.
+    private @Nullable ScanFilesTask runningScan;
+    private @Nullable SimpleDeferred<ScanResult> queuedScan;
+    private @Nullable ScanProgressListener queuedScanListener;
 
     @Inject
     public FileScanner(
             @Named("AUDIOBOOKS_DIRECTORY") String audioBooksDirectoryName,
             @Named("IO_EXECUTOR") BackgroundExecutor ioExecutor,
-            Context applicationContext) {
+            Context applicationContext,
+            EventBus eventBus,
+            SavedStateLookup savedStateLookup) {
         this.audioBooksDirectoryName = audioBooksDirectoryName;
         this.ioExecutor = ioExecutor;
         this.applicationContext = applicationContext;
+        this.scanEnvironment =
+                new AndroidScanEnvironment(applicationContext, audioBooksDirectoryName);
+        this.scanCache = new ScanCache(
+                new File(applicationContext.getFilesDir(), SCAN_CACHE_FILE_NAME));
+        this.savedStateLookup = savedStateLookup;
+        this.scanWorkers = createScanWorkers();
+        this.mainThreadHandler = new Handler(Looper.getMainLooper());
+        this.libraryWatcher = new LibraryWatcher(eventBus);
     }
 
-    public SimpleFuture<List<FileSet>> scanAudioBooksDirectories() {
+    @MainThread
+    public SimpleFuture<ScanResult> scanAudioBooksDirectories() {
+        return scanAudioBooksDirectories(null);
+    }
+
+    /**
+     * Scan for audio books, reporting the books to progressListener as they are found.
+     * The listener is called on the main thread, always before the result is delivered.
+     *
+     * If a scan is already running it is cancelled and its result is marked as superseded.
+     * The new scan is started when it has stopped, requests made in the meantime share the
+     * new scan and its result (only the listener of the last one is used).
+     */
+    @MainThread
+    public SimpleFuture<ScanResult> scanAudioBooksDirectories(
+            @Nullable ScanProgressListener progressListener) {
+        if (runningScan == null) {
+            SimpleDeferred<ScanResult> result = new SimpleDeferred<>();
+            startScan(progressListener, result);
+            return result;
+        }
+
+        runningScan.cancel();
+        if (queuedScan == null)
+            queuedScan = new SimpleDeferred<>();
+        queuedScanListener = progressListener;
+        return queuedScan;
+    }
+
+    @MainThread
+    private void startScan(@Nullable final ScanProgressListener progressListener,
+                           @NonNull final SimpleDeferred<ScanResult> result) {
         ensureDefaultAudioBooksDirectory();
-        ScanFilesTask task = new ScanFilesTask(applicationContext, audioBooksDirectoryName);
-        return ioExecutor.postTask(task);
+        ScanProgressListener mainThreadListener = null;
+        if (progressListener != null) {
+            mainThreadListener = new ScanProgressListener() {
+                @Override
+                public void onFileSetsFound(@NonNull final List<FileSet> fileSets) {
+                    mainThreadHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            progressListener.onFileSetsFound(fileSets);
+                        }
+                    });
+                }
+            };
+        }
+        final ScanFilesTask task = new ScanFilesTask(
+                scanEnvironment,
+                scanCache,
+                savedStateLookup,
+                scanWorkers,
+                mainThreadListener);
+        runningScan = task;
+        SimpleFuture<List<FileSet>> scan = ioExecutor.postTask(new Callable<List<FileSet>>() {
+            @Override
+            public List<FileSet> call() throws Exception {
+                try {
+                    return task.call();
+                } finally {
+                    Crashlytics.log("ScanFilesTask: " + task.getStats());
+                }
+            }
+        });
+        scan.addListener(new SimpleFuture.Listener<List<FileSet>>() {
+            @Override
+            public void onResult(@NonNull List<FileSet> fileSets) {
+                boolean isSuperseded = queuedScan != null;
+                startQueuedScan();
+                result.setResult(new ScanResult(fileSets, isSuperseded));
+            }
+
+            @Override
+            public void onException(@NonNull Throwable t) {
+                startQueuedScan();
+                if (t instanceof CancellationException)
+                    result.setResult(ScanResult.cancelled());
+                else
+                    result.setException(t);
+            }
+        });
+        watchAudioBooksDirectories();
+    }
+
+    @MainThread
+    private void startQueuedScan() {
+        runningScan = null;
+        if (queuedScan != null) {
+            SimpleDeferred<ScanResult> result = queuedScan;
+            ScanProgressListener progressListener = queuedScanListener;
+            queuedScan = null;
+            queuedScanListener = null;
+            startScan(progressListener, result);
+        }
+    }
+
+    /**
+     * Scan a single book directory, e.g. after the LibraryWatcher has reported changes in it.
+     * The result is empty if the directory is gone or no longer contains audio files.
+     */
+    public SimpleFuture<List<FileSet>> scanAudioBookDirectory(@NonNull final File bookDirectory) {
+        final ScanFilesTask task = new ScanFilesTask(
+                scanEnvironment,
+                scanCache,
+                savedStateLookup,
+                null,
+                null);
+        return ioExecutor.postTask(new Callable<List<FileSet>>() {
+            @Override
+            public List<FileSet> call() throws Exception {
+                FileSet fileSet = task.rescanBookDirectory(bookDirectory);
+                return fileSet != null
+                        ? Collections.singletonList(fileSet)
+                        : Collections.<FileSet>emptyList();
+            }
+        });
+    }
+
+    /**
+     * Whether changes to the audio books directories have been observed recently, in which
+     * case they have already been handled by scanning the affected books.
+     */
+    public boolean hasRecentLibraryActivity() {
+        return libraryWatcher.hasRecentActivity();
     }
 
     /**
@@ -52,6 +217,16 @@ public class FileScanner {
         return new File(externalStorage, audioBooksDirectoryName);
     }
 
+    private void watchAudioBooksDirectories() {
+        ioExecutor.postTask(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                libraryWatcher.watch(scanEnvironment.listAudioBooksDirectories());
+                return null;
+            }
+        });
+    }
+
     private void ensureDefaultAudioBooksDirectory() {
         final File defaultAudiobooksPath = getDefaultAudioBooksDirectory();
         ioExecutor.postTask(new Callable<Void>() {
@@ -63,6 +238,24 @@ public class FileScanner {
         });
     }
 
+    private static ExecutorService createScanWorkers() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                SCAN_THREAD_COUNT, SCAN_THREAD_COUNT,
+                SCAN_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        return new Thread(runnable, "Scan-" + threadCount.incrementAndGet());
+                    }
+                });
+        // Don't keep idle threads around between scans.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private static void ensureAudioBooksDirectory(Context applicationContext, File path) {
         if (!path.exists()) {
             if (path.getParentFile().canWrite()) {
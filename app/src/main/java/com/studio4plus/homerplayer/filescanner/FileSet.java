@@ -1,5 +1,7 @@
 package com.studio4plus.homerplayer.filescanner;
 
+import android.support.annotation.Nullable;
+
 import com.google.common.base.Preconditions;
 
 import java.io.File;
@@ -7,15 +9,30 @@ import java.io.File;
 public class FileSet {
 
     public final String id;
+    public final File directory;
     public final String directoryName;
-    public final File[] files;
+    public final BookFiles files;
+    // Durations of the files known when scanning (e.g. from the MediaStore), 0 for unknown.
+    // Null if none are known.
+    public final @Nullable long[] fileDurations;
     public final boolean isDemoSample;
 
-    public FileSet(String id, File absolutePath, File[] files, boolean isDemoSample) {
+    public FileSet(String id, File absolutePath, BookFiles files, boolean isDemoSample) {
+        this(id, absolutePath, files, null, isDemoSample);
+    }
+
+    public FileSet(String id,
+                   File absolutePath,
+                   BookFiles files,
+                   @Nullable long[] fileDurations,
+                   boolean isDemoSample) {
         Preconditions.checkArgument(absolutePath.isDirectory());
+        Preconditions.checkArgument(fileDurations == null || fileDurations.length == files.size());
         this.id = id;
+        this.directory = absolutePath;
         this.directoryName = absolutePath.getName();
         this.files = files;
+        this.fileDurations = fileDurations;
         this.isDemoSample = isDemoSample;
     }
 
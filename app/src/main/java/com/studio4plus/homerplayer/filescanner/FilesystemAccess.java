@@ -0,0 +1,112 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists directories and reads file attributes, counting the filesystem calls made.
+ *
+ * The File methods are used, which query the filesystem once per attribute. See
+ * OsFilesystemAccess for reading all attributes with a single call.
+ */
+class FilesystemAccess {
+
+    private final @NonNull AtomicInteger callCounter;
+
+    FilesystemAccess(@NonNull AtomicInteger callCounter) {
+        this.callCounter = callCounter;
+    }
+
+    /**
+     * Returns the names of all entries in the directory or null if it can't be listed.
+     */
+    @Nullable
+    String[] list(@NonNull File directory) {
+        callCounter.incrementAndGet();
+        return directory.list();
+    }
+
+    /**
+     * Returns the attributes of the file or null if it doesn't exist.
+     */
+    @Nullable
+    FileAttributes stat(@NonNull File file) {
+        return readAttributes(file, file.getName());
+    }
+
+    @Nullable
+    FileAttributes stat(@NonNull File directory, @NonNull String name) {
+        return readAttributes(new File(directory, name), name);
+    }
+
+    boolean exists(@NonNull File file) {
+        callCounter.incrementAndGet();
+        return file.exists();
+    }
+
+    /**
+     * Returns the lines of a text file or null if it can't be read.
+     */
+    @Nullable
+    List<String> readLines(@NonNull File file) {
+        callCounter.incrementAndGet();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+            return lines;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an object that is equal for all paths leading to the same directory, or null if
+     * it can't be determined.
+     */
+    @Nullable
+    Object getDirectoryKey(@NonNull FileAttributes directory) {
+        if (directory.fileKey != null)
+            return directory.fileKey;
+
+        callCounter.incrementAndGet();
+        try {
+            return directory.file.getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Reads the attributes of one file, subclasses may do it with fewer calls.
+    @Nullable
+    FileAttributes readAttributes(@NonNull File file, @NonNull String name) {
+        callCounter.addAndGet(2);
+        if (file.isDirectory())
+            return new FileAttributes(file, name, true, 0, file.lastModified(), null);
+        // The length is 0 for files that don't exist, there is no need to check it separately.
+        return new FileAttributes(file, name, false, file.length(), 0, null);
+    }
+
+    void countCall() {
+        callCounter.incrementAndGet();
+    }
+}
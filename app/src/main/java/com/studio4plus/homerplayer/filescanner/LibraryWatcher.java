@@ -0,0 +1,228 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.studio4plus.homerplayer.events.AudioBookDirectoryChangedEvent;
+import com.studio4plus.homerplayer.util.DirectoryFilter;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * Watches the audio books directories and all their subdirectories for changes and posts an
+ * AudioBookDirectoryChangedEvent for the book whose files have changed.
+ *
+ * FileObserver is not recursive so there is one observer per directory. Observers for new
+ * subdirectories are added as they are created.
+ * Changes are reported only after BOOK_RESCAN_DELAY_MS have passed since the last change to
+ * a book so that copying a book results in a single event.
+ */
+class LibraryWatcher {
+
+    private static final long BOOK_RESCAN_DELAY_MS = 3000;
+    // Long enough to cover the delay of MediaStoreUpdateObserver and the media scanner itself.
+    private static final long RECENT_ACTIVITY_WINDOW_MS = 30000;
+    // The audio books directory is at depth 0, books at depth 1.
+    private static final int MAX_WATCH_DEPTH = PruningRules.MAX_DIRECTORY_DEPTH + 1;
+    private static final int WATCHED_EVENTS = FileObserver.CREATE | FileObserver.DELETE |
+            FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE |
+            FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private final @NonNull EventBus eventBus;
+    private final @NonNull Handler mainThreadHandler;
+    private final @NonNull Map<String, DirectoryObserver> observers = new HashMap<>();
+    private final @NonNull Set<String> watchedAudioBooksDirs = new HashSet<>();
+    private final @NonNull Map<String, Runnable> pendingNotifications = new HashMap<>();
+    private volatile long lastActivityTime;
+
+    LibraryWatcher(@NonNull EventBus eventBus) {
+        this.eventBus = eventBus;
+        this.mainThreadHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Start watching the audio books directories (and stop watching any other).
+     * Walks the directory trees of new audio books directories so it should be called on
+     * a background thread.
+     */
+    @WorkerThread
+    synchronized void watch(@NonNull List<File> audioBooksDirs) {
+        Set<String> newAudioBooksDirs = new HashSet<>();
+        for (File audioBooksDir : audioBooksDirs)
+            newAudioBooksDirs.add(audioBooksDir.getPath());
+
+        Iterator<DirectoryObserver> iterator = observers.values().iterator();
+        while (iterator.hasNext()) {
+            DirectoryObserver observer = iterator.next();
+            if (!newAudioBooksDirs.contains(observer.audioBooksDir.getPath())) {
+                observer.stopWatching();
+                iterator.remove();
+            }
+        }
+        watchedAudioBooksDirs.retainAll(newAudioBooksDirs);
+
+        for (File audioBooksDir : audioBooksDirs) {
+            if (!watchedAudioBooksDirs.contains(audioBooksDir.getPath())
+                    && audioBooksDir.isDirectory()) {
+                watchedAudioBooksDirs.add(audioBooksDir.getPath());
+                addObserversRecursive(audioBooksDir, audioBooksDir, null, 0);
+            }
+        }
+    }
+
+    /**
+     * Whether any changes have been observed recently. If so, a change notification from the
+     * MediaStore is most likely caused by the same change and has already been handled.
+     */
+    boolean hasRecentActivity() {
+        return lastActivityTime != 0 &&
+                SystemClock.elapsedRealtime() - lastActivityTime < RECENT_ACTIVITY_WINDOW_MS;
+    }
+
+    private void addObserversRecursive(
+            @NonNull File directory,
+            @NonNull File audioBooksDir,
+            @Nullable File bookDirectory,
+            int depth) {
+        if (observers.containsKey(directory.getPath()))
+            return;
+
+        DirectoryObserver observer = new DirectoryObserver(directory, audioBooksDir, bookDirectory);
+        observers.put(directory.getPath(), observer);
+        observer.startWatching();
+
+        if (depth < MAX_WATCH_DEPTH) {
+            File[] subdirectories = directory.listFiles(new DirectoryFilter());
+            if (subdirectories != null) {
+                for (File subdirectory : subdirectories) {
+                    File subdirectoryBook = bookDirectory != null ? bookDirectory : subdirectory;
+                    addObserversRecursive(subdirectory, audioBooksDir, subdirectoryBook, depth + 1);
+                }
+            }
+        }
+    }
+
+    private synchronized void onDirectoryEvent(
+            @NonNull DirectoryObserver observer, int event, @Nullable String path) {
+        lastActivityTime = SystemClock.elapsedRealtime();
+
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            // Observers of subdirectories that have been moved or deleted are removed when the
+            // parent reports it, before any new observer may share their inotify watch.
+            if (observers.get(observer.directory.getPath()) != observer)
+                return;
+            removeObserversBelow(observer.directory);
+            if (observer.bookDirectory == null) {
+                // The whole audio books directory is gone.
+                watchedAudioBooksDirs.remove(observer.audioBooksDir.getPath());
+                scheduleNotification(null);
+            }
+            // Changes in book directories are also reported by their parents.
+            return;
+        }
+
+        if (path == null)
+            return;
+
+        File changedFile = new File(observer.directory, path);
+        // A removed directory no longer exists but has been watched.
+        boolean isDirectory =
+                changedFile.isDirectory() || observers.containsKey(changedFile.getPath());
+        if (observer.bookDirectory == null && !isDirectory) {
+            // A file in the audio books directory, e.g. the ignore file, may affect any book.
+            scheduleNotification(null);
+            return;
+        }
+
+        File bookDirectory = observer.bookDirectory != null ? observer.bookDirectory : changedFile;
+        if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0)
+            removeObserversBelow(changedFile);
+        if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0 && isDirectory) {
+            int depth = depthBelow(observer.audioBooksDir, changedFile);
+            addObserversRecursive(changedFile, observer.audioBooksDir, bookDirectory, depth);
+        }
+        scheduleNotification(bookDirectory);
+    }
+
+    // Stop and remove the observers of the directory and all its subdirectories.
+    private void removeObserversBelow(@NonNull File directory) {
+        String directoryPath = directory.getPath();
+        String subdirectoryPrefix = directoryPath + File.separator;
+        Iterator<Map.Entry<String, DirectoryObserver>> iterator = observers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, DirectoryObserver> entry = iterator.next();
+            String path = entry.getKey();
+            if (path.equals(directoryPath) || path.startsWith(subdirectoryPrefix)) {
+                entry.getValue().stopWatching();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void scheduleNotification(@Nullable final File bookDirectory) {
+        String key = bookDirectory != null ? bookDirectory.getPath() : "";
+        Runnable notification;
+        synchronized (pendingNotifications) {
+            notification = pendingNotifications.get(key);
+            if (notification == null) {
+                notification = new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (pendingNotifications) {
+                            pendingNotifications.values().remove(this);
+                        }
+                        eventBus.post(new AudioBookDirectoryChangedEvent(bookDirectory));
+                    }
+                };
+                pendingNotifications.put(key, notification);
+            }
+        }
+        mainThreadHandler.removeCallbacks(notification);
+        mainThreadHandler.postDelayed(notification, BOOK_RESCAN_DELAY_MS);
+    }
+
+    private static int depthBelow(@NonNull File ancestor, @NonNull File file) {
+        int depth = 0;
+        String ancestorPath = ancestor.getPath();
+        for (File f = file; f != null && !f.getPath().equals(ancestorPath); f = f.getParentFile())
+            ++depth;
+        return depth;
+    }
+
+    private class DirectoryObserver extends FileObserver {
+
+        final @NonNull File directory;
+        final @NonNull File audioBooksDir;
+        // Null for the audio books directory itself.
+        final @Nullable File bookDirectory;
+
+        DirectoryObserver(
+                @NonNull File directory,
+                @NonNull File audioBooksDir,
+                @Nullable File bookDirectory) {
+            super(directory.getPath(), WATCHED_EVENTS);
+            this.directory = directory;
+            this.audioBooksDir = audioBooksDir;
+            this.bookDirectory = bookDirectory;
+        }
+
+        @Override
+        public void onEvent(int event, @Nullable String path) {
+            if ((event & WATCHED_EVENTS) != 0)
+                onDirectoryEvent(this, event, path);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Audio files in the audio books directories as indexed by the MediaStore, read with a single
+ * query (see AndroidScanEnvironment) and grouped by book directory.
+ *
+ * The MediaStore may be behind the filesystem (e.g. a book is being copied) so the files of
+ * a book are only used when none of its directories has been modified after its files were
+ * indexed. The MediaStore skips directories with a .nomedia file, so do the PruningRules.
+ * It also skips hidden files which are part of the listings, so the files of a directory
+ * are only used if it contains no other audio files. This way a book gets the same id as
+ * when its directories are listed.
+ */
+class MediaStoreIndex {
+
+    static class IndexedFile {
+        // Relative to the book directory, starting with the separator.
+        final @NonNull String relativePath;
+        final long length;
+        // 0 if unknown.
+        final long durationMs;
+        final long dateAddedSeconds;
+
+        IndexedFile(@NonNull String relativePath,
+                    long length,
+                    long durationMs,
+                    long dateAddedSeconds) {
+            this.relativePath = relativePath;
+            this.length = length;
+            this.durationMs = durationMs;
+            this.dateAddedSeconds = dateAddedSeconds;
+        }
+    }
+
+    static final MediaStoreIndex EMPTY =
+            new MediaStoreIndex(Collections.<String, List<IndexedFile>>emptyMap());
+
+    // Keys are book directory paths.
+    private final @NonNull Map<String, List<IndexedFile>> filesByBook;
+
+    private MediaStoreIndex(@NonNull Map<String, List<IndexedFile>> filesByBook) {
+        this.filesByBook = filesByBook;
+    }
+
+    /**
+     * Groups the files of the index by book directory.
+     */
+    static class Builder {
+        private final @NonNull String directoryMarker;
+        private final @NonNull Map<String, List<IndexedFile>> filesByBook = new HashMap<>();
+
+        Builder(@NonNull String audioBooksDirectoryName) {
+            this.directoryMarker = File.separator + audioBooksDirectoryName + File.separator;
+        }
+
+        /**
+         * Add a file, files outside of book directories are ignored.
+         */
+        void addFile(@NonNull String path, long length, long durationMs, long dateAddedSeconds) {
+            int markerIndex = path.indexOf(directoryMarker);
+            if (markerIndex < 0)
+                return;
+            int bookNameStart = markerIndex + directoryMarker.length();
+            int bookNameEnd = path.indexOf(File.separatorChar, bookNameStart);
+            // Files directly in the audio books directory are not books.
+            if (bookNameEnd < 0)
+                return;
+
+            String bookPath = path.substring(0, bookNameEnd);
+            List<IndexedFile> files = filesByBook.get(bookPath);
+            if (files == null) {
+                files = new ArrayList<>();
+                filesByBook.put(bookPath, files);
+            }
+            files.add(new IndexedFile(
+                    path.substring(bookNameEnd), length, durationMs, dateAddedSeconds));
+        }
+
+        @NonNull
+        MediaStoreIndex build() {
+            return new MediaStoreIndex(filesByBook);
+        }
+    }
+
+    /**
+     * Returns the directories of the book built from the indexed files, without the
+     * subdirectories that contain no audio files, or null if the book is not indexed or the
+     * index may be out of date.
+     * The directory contents are not sorted and they are never reused by later scans.
+     */
+    @Nullable
+    ScanCache.DirectoryEntry[] getBookDirectories(@NonNull FileAttributes bookDirectory,
+                                                  @NonNull PruningRules rules,
+                                                  @NonNull FilesystemAccess filesystem) {
+        List<IndexedFile> files = filesByBook.get(bookDirectory.file.getPath());
+        if (files == null)
+            return null;
+
+        Map<String, IndexedDirectory> directories = new HashMap<>();
+        IndexedDirectory bookRoot = new IndexedDirectory();
+        directories.put("", bookRoot);
+        for (IndexedFile file : files) {
+            int nameStart = file.relativePath.lastIndexOf(File.separatorChar) + 1;
+            String name = file.relativePath.substring(nameStart);
+            if (!ScanFilesTask.isAudioFile(name))
+                continue;
+
+            IndexedDirectory directory = getDirectory(
+                    file.relativePath, nameStart - 1, bookDirectory, rules, directories);
+            if (directory != null && directory.fileNames.add(name)) {
+                directory.fileLengths.add(file.length);
+                directory.updateDateAdded(file.dateAddedSeconds);
+            }
+        }
+        if (bookRoot.isEmpty())
+            return null;
+
+        // Only files added before the last change of their directories may be missing.
+        for (Map.Entry<String, IndexedDirectory> entry : directories.entrySet()) {
+            FileAttributes attributes = entry.getKey().isEmpty()
+                    ? bookDirectory
+                    : filesystem.stat(new File(bookDirectory.file.getPath() + entry.getKey()));
+            if (attributes == null || !attributes.isDirectory ||
+                    attributes.lastModified / 1000 > entry.getValue().maxDateAddedSeconds ||
+                    hasUnindexedAudioFiles(attributes.file, entry.getValue(), filesystem))
+                return null;
+        }
+
+        List<ScanCache.DirectoryEntry> entries = new ArrayList<>(directories.size());
+        for (Map.Entry<String, IndexedDirectory> entry : directories.entrySet()) {
+            ScanCache.DirectoryEntry directoryEntry =
+                    entry.getValue().toDirectoryEntry(entry.getKey());
+            // The book directory must be the first one.
+            if (entry.getKey().isEmpty())
+                entries.add(0, directoryEntry);
+            else
+                entries.add(directoryEntry);
+        }
+        return entries.toArray(new ScanCache.DirectoryEntry[entries.size()]);
+    }
+
+    /**
+     * Returns the durations of the indexed files of the book by their relative paths.
+     */
+    @NonNull
+    Map<String, Long> getBookFileDurations(@NonNull File bookDirectory) {
+        List<IndexedFile> files = filesByBook.get(bookDirectory.getPath());
+        if (files == null)
+            return Collections.emptyMap();
+
+        Map<String, Long> durations = new HashMap<>(files.size());
+        for (IndexedFile file : files) {
+            if (file.durationMs > 0)
+                durations.put(file.relativePath, file.durationMs);
+        }
+        return durations;
+    }
+
+    // Lists only the names, e.g. hidden files that are not in the index, without reading their
+    // attributes.
+    private static boolean hasUnindexedAudioFiles(@NonNull File directory,
+                                                  @NonNull IndexedDirectory indexedDirectory,
+                                                  @NonNull FilesystemAccess filesystem) {
+        String[] names = filesystem.list(directory);
+        if (names == null)
+            return true;
+        for (String name : names) {
+            if (ScanFilesTask.isAudioFile(name) && !indexedDirectory.fileNames.contains(name))
+                return true;
+        }
+        return false;
+    }
+
+    // Returns the directory with path relativePath.substring(0, end), adding it and its parents
+    // if necessary, or null if it is pruned.
+    @Nullable
+    private static IndexedDirectory getDirectory(
+            @NonNull String relativePath,
+            int end,
+            @NonNull FileAttributes bookDirectory,
+            @NonNull PruningRules rules,
+            @NonNull Map<String, IndexedDirectory> directories) {
+        String path = relativePath.substring(0, end);
+        IndexedDirectory directory = directories.get(path);
+        if (directory != null)
+            return directory;
+
+        int nameStart = path.lastIndexOf(File.separatorChar);
+        String name = path.substring(nameStart + 1);
+        int depth = 0;
+        for (int i = 0; i < end; ++i) {
+            if (path.charAt(i) == File.separatorChar)
+                ++depth;
+        }
+        if (rules.isDirectoryPruned(bookDirectory.name, name, path, depth))
+            return null;
+
+        IndexedDirectory parent =
+                getDirectory(relativePath, nameStart, bookDirectory, rules, directories);
+        if (parent == null)
+            return null;
+
+        directory = new IndexedDirectory();
+        directory.parent = parent;
+        parent.subdirectoryNames.add(name);
+        directories.put(path, directory);
+        return directory;
+    }
+
+    private static class IndexedDirectory {
+        @Nullable IndexedDirectory parent;
+        final @NonNull Set<String> fileNames = new LinkedHashSet<>();
+        final @NonNull List<Long> fileLengths = new ArrayList<>();
+        final @NonNull Set<String> subdirectoryNames = new LinkedHashSet<>();
+        // Of all files in the directory and its subdirectories.
+        long maxDateAddedSeconds;
+
+        boolean isEmpty() {
+            return fileNames.isEmpty() && subdirectoryNames.isEmpty();
+        }
+
+        void updateDateAdded(long dateAddedSeconds) {
+            for (IndexedDirectory directory = this; directory != null; directory = directory.parent)
+                directory.maxDateAddedSeconds =
+                        Math.max(directory.maxDateAddedSeconds, dateAddedSeconds);
+        }
+
+        @NonNull
+        ScanCache.DirectoryEntry toDirectoryEntry(@NonNull String relativePath) {
+            int fileCount = fileNames.size();
+            String[] childNames = new String[fileCount + subdirectoryNames.size()];
+            long[] childLengths = new long[childNames.length];
+            int i = 0;
+            for (String fileName : fileNames) {
+                childNames[i] = fileName;
+                childLengths[i] = fileLengths.get(i);
+                ++i;
+            }
+            for (String subdirectoryName : subdirectoryNames) {
+                childNames[i] = subdirectoryName;
+                childLengths[i] = ScanCache.DirectoryEntry.DIRECTORY;
+                ++i;
+            }
+            return new ScanCache.DirectoryEntry(relativePath,
+                    ScanCache.DirectoryEntry.UNKNOWN_MODIFICATION_TIME, childNames, childLengths);
+        }
+    }
+}
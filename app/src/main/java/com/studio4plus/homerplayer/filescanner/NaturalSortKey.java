@@ -0,0 +1,99 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sort key for the natural order of file names: runs of digits are compared by their numeric
+ * value and the text between them with a locale aware collator, so "Chapter 2" comes before
+ * "Chapter 10".
+ */
+class NaturalSortKey implements Comparable<NaturalSortKey> {
+
+    // CollationKeys for text runs, digit strings without leading zeros for numeric runs.
+    private final @NonNull Object[] parts;
+    private final @NonNull String name;
+
+    private NaturalSortKey(@NonNull Object[] parts, @NonNull String name) {
+        this.parts = parts;
+        this.name = name;
+    }
+
+    /**
+     * Create the key. All keys that are compared with each other must be created with the same
+     * collator.
+     */
+    @NonNull
+    static NaturalSortKey create(@NonNull Collator collator, @NonNull String name) {
+        List<Object> parts = new ArrayList<>();
+        // The extension is left out so that "Part.mp3" comes before "Part 1.mp3". It's still
+        // used to order names that are otherwise equal.
+        final int length = ScanFilesTask.isAudioFile(name) ? name.lastIndexOf('.') : name.length();
+        int start = 0;
+        while (start < length) {
+            boolean isNumber = Character.isDigit(name.charAt(start));
+            int end = start + 1;
+            while (end < length && Character.isDigit(name.charAt(end)) == isNumber)
+                ++end;
+            if (isNumber)
+                parts.add(normalizeNumber(name, start, end));
+            else
+                parts.add(collator.getCollationKey(name.substring(start, end)));
+            start = end;
+        }
+        return new NaturalSortKey(parts.toArray(), name);
+    }
+
+    @Override
+    public int compareTo(@NonNull NaturalSortKey other) {
+        final int count = Math.min(parts.length, other.parts.length);
+        for (int i = 0; i < count; ++i) {
+            int result = compareParts(parts[i], other.parts[i]);
+            if (result != 0)
+                return result;
+        }
+        if (parts.length != other.parts.length)
+            return parts.length < other.parts.length ? -1 : 1;
+
+        // Equal for the collator (e.g. differ only in case) or in leading zeros.
+        int result = name.compareToIgnoreCase(other.name);
+        return result != 0 ? result : name.compareTo(other.name);
+    }
+
+    private static int compareParts(@NonNull Object lhs, @NonNull Object rhs) {
+        boolean isLhsNumber = lhs instanceof String;
+        boolean isRhsNumber = rhs instanceof String;
+        if (isLhsNumber && isRhsNumber)
+            return compareNumbers((String) lhs, (String) rhs);
+        if (!isLhsNumber && !isRhsNumber)
+            return ((CollationKey) lhs).compareTo((CollationKey) rhs);
+
+        // Like the collator: punctuation and spaces before digits, digits before letters.
+        CollationKey text = (CollationKey) (isLhsNumber ? rhs : lhs);
+        boolean isTextFirst = !Character.isLetter(text.getSourceString().charAt(0));
+        return isTextFirst == isLhsNumber ? 1 : -1;
+    }
+
+    private static int compareNumbers(@NonNull String lhs, @NonNull String rhs) {
+        if (lhs.length() != rhs.length())
+            return lhs.length() < rhs.length() ? -1 : 1;
+        return lhs.compareTo(rhs);
+    }
+
+    // Returns the ASCII digits of the number without leading zeros so that numbers of any
+    // length can be compared.
+    @NonNull
+    private static String normalizeNumber(@NonNull String name, int start, int end) {
+        StringBuilder digits = new StringBuilder(end - start);
+        for (int i = start; i < end; ++i) {
+            int digit = Character.digit(name.charAt(i), 10);
+            if (digits.length() > 0 || digit != 0)
+                digits.append((char) ('0' + digit));
+        }
+        return digits.toString();
+    }
+}
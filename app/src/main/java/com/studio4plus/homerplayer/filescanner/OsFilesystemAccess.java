@@ -0,0 +1,67 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.annotation.TargetApi;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FilesystemAccess that reads all attributes of a file with a single stat call.
+ */
+@TargetApi(21)
+class OsFilesystemAccess extends FilesystemAccess {
+
+    OsFilesystemAccess(@NonNull AtomicInteger callCounter) {
+        super(callCounter);
+    }
+
+    @Nullable
+    @Override
+    FileAttributes readAttributes(@NonNull File file, @NonNull String name) {
+        countCall();
+        try {
+            // Follows symlinks, like the File methods.
+            StructStat stat = Os.stat(file.getPath());
+            boolean isDirectory = OsConstants.S_ISDIR(stat.st_mode);
+            return new FileAttributes(
+                    file,
+                    name,
+                    isDirectory,
+                    isDirectory ? 0 : stat.st_size,
+                    stat.st_mtime * 1000,
+                    new FileKey(stat.st_dev, stat.st_ino));
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    private static class FileKey {
+        private final long device;
+        private final long inode;
+
+        FileKey(long device, long inode) {
+            this.device = device;
+            this.inode = inode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            FileKey fileKey = (FileKey) o;
+            return device == fileKey.device && inode == fileKey.inode;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (device ^ (device >>> 32)) + (int) (inode ^ (inode >>> 32));
+        }
+    }
+}
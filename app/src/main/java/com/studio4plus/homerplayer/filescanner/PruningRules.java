@@ -0,0 +1,96 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rules for skipping parts of an audio books directory during a scan. They are evaluated
+ * before a directory is listed so that pruned directory trees are never walked.
+ *
+ * Pruned are:
+ *  - hidden directories (the MediaStore skips them too),
+ *  - subdirectories of books that contain a .nomedia file (not the books themselves, it's
+ *    common to hide audio books from music players this way),
+ *  - directories nested deeper than MAX_DIRECTORY_DEPTH in a book,
+ *  - paths listed in the IGNORE_FILE_NAME file in the audio books directory, one per line,
+ *    relative to the audio books directory, e.g. "Some Book/Extras".
+ * Hidden files are not pruned, e.g. the "._" files created by macOS are part of the ids of
+ * books scanned before pruning was introduced. Audio files shorter than MIN_AUDIO_FILE_LENGTH
+ * are skipped by books in FileOrder.NATURAL only, for the same reason.
+ */
+class PruningRules {
+
+    static final String NO_MEDIA_FILE_NAME = ".nomedia";
+    static final String IGNORE_FILE_NAME = ".homerignore";
+    // Depth below the book directory.
+    static final int MAX_DIRECTORY_DEPTH = 7;
+    // Smaller files are not playable, most likely they are incomplete copies or metadata
+    // files, e.g. the "._" files created by macOS.
+    static final long MIN_AUDIO_FILE_LENGTH = 1024;
+
+    private static final String COMMENT_PREFIX = "#";
+
+    static final PruningRules DEFAULT = new PruningRules(Collections.<String>emptySet());
+
+    // Paths relative to the audio books directory, without leading and trailing separators.
+    private final @NonNull Set<String> ignoredPaths;
+
+    private PruningRules(@NonNull Set<String> ignoredPaths) {
+        this.ignoredPaths = ignoredPaths;
+    }
+
+    @NonNull
+    static PruningRules fromIgnoreFile(@Nullable List<String> ignoreFileLines) {
+        if (ignoreFileLines == null)
+            return DEFAULT;
+
+        Set<String> ignoredPaths = new HashSet<>();
+        for (String line : ignoreFileLines) {
+            String path = trimSeparators(line.trim());
+            if (!path.isEmpty() && !path.startsWith(COMMENT_PREFIX))
+                ignoredPaths.add(path);
+        }
+        return ignoredPaths.isEmpty() ? DEFAULT : new PruningRules(ignoredPaths);
+    }
+
+    boolean isBookPruned(@NonNull String bookName) {
+        return isHidden(bookName) || ignoredPaths.contains(bookName);
+    }
+
+    /**
+     * @param relativePath the path relative to the book directory, starting with the separator.
+     * @param depth the depth below the book directory, 1 for its subdirectories.
+     */
+    boolean isDirectoryPruned(@NonNull String bookName,
+                              @NonNull String name,
+                              @NonNull String relativePath,
+                              int depth) {
+        return depth > MAX_DIRECTORY_DEPTH || isHidden(name) ||
+                (!ignoredPaths.isEmpty() && ignoredPaths.contains(bookName + relativePath));
+    }
+
+    static boolean isAudioFileLongEnough(long length) {
+        return length >= MIN_AUDIO_FILE_LENGTH;
+    }
+
+    static boolean isHidden(@NonNull String name) {
+        return name.startsWith(".");
+    }
+
+    @NonNull
+    private static String trimSeparators(@NonNull String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == File.separatorChar)
+            ++start;
+        while (end > start && path.charAt(end - 1) == File.separatorChar)
+            --end;
+        return path.substring(start, end);
+    }
+}
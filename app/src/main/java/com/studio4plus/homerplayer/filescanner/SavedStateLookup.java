@@ -0,0 +1,11 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+
+public interface SavedStateLookup {
+    /**
+     * Whether there is saved state (e.g. the playback position) for the book. It may be
+     * called on any thread.
+     */
+    boolean hasSavedState(@NonNull String bookId);
+}
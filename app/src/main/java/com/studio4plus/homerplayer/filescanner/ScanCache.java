@@ -0,0 +1,443 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent snapshot of the book directories found by the last scan.
+ *
+ * For each book directory it stores the listing of the directory and all its subdirectories
+ * (all audio files and subdirectories, with file sizes) together with their modification times.
+ * Adding, removing or renaming a file changes the modification time of the directory containing
+ * it so the listing of a directory whose modification time is unchanged can be reused without
+ * listing it again. A book whose directory listings are all unchanged is reused entirely,
+ * including its id and file order.
+ *
+ * The entries may be read and updated from several scanning threads at once.
+ */
+class ScanCache {
+
+    // Listings of older versions have no hidden and short audio files, they are not read.
+    private static final int FORMAT_VERSION = 4;
+
+    interface FileVisitor {
+        void onFile(@NonNull String relativePath, long length);
+    }
+
+    static class DirectoryEntry {
+        static final long DIRECTORY = -1;
+        // Listings with this modification time are never reused.
+        static final long UNKNOWN_MODIFICATION_TIME = Long.MIN_VALUE;
+
+        // Path relative to the book directory, starting with the separator. Empty for the book
+        // directory itself.
+        final @NonNull String relativePath;
+        final long lastModified;
+        // Audio files and subdirectories in the file order of the book.
+        final @NonNull String[] childNames;
+        // Lengths of the files, DIRECTORY for subdirectories.
+        final @NonNull long[] childLengths;
+
+        DirectoryEntry(@NonNull String relativePath,
+                       long lastModified,
+                       @NonNull String[] childNames,
+                       @NonNull long[] childLengths) {
+            this.relativePath = relativePath;
+            this.lastModified = lastModified;
+            this.childNames = childNames;
+            this.childLengths = childLengths;
+        }
+
+        /**
+         * Whether the directory contains audio files that are too short to be played. They
+         * may be still being copied, which doesn't change the modification time of the
+         * directory, so such listings are not reused.
+         */
+        boolean hasShortAudioFiles() {
+            for (long length : childLengths) {
+                if (length != DIRECTORY && !PruningRules.isAudioFileLongEnough(length))
+                    return true;
+            }
+            return false;
+        }
+
+        boolean hasSameContents(@NonNull DirectoryEntry other) {
+            return relativePath.equals(other.relativePath) &&
+                    Arrays.equals(childNames, other.childNames) &&
+                    Arrays.equals(childLengths, other.childLengths);
+        }
+
+        @NonNull
+        DirectoryEntry sorted(@NonNull FileOrder order) {
+            int[] indices = order.sort(childNames);
+            String[] sortedNames = new String[indices.length];
+            long[] sortedLengths = new long[indices.length];
+            for (int i = 0; i < indices.length; ++i) {
+                sortedNames[i] = childNames[indices[i]];
+                sortedLengths[i] = childLengths[indices[i]];
+            }
+            return new DirectoryEntry(relativePath, lastModified, sortedNames, sortedLengths);
+        }
+    }
+
+    static class BookEntry {
+        // Null if the directory contains no audio files.
+        final @Nullable String id;
+        final boolean isDemoSample;
+        final @NonNull FileOrder fileOrder;
+        // All directories of the book in the order of traversal, i.e. each directory is
+        // followed by its subdirectories. The first one is the book directory itself.
+        final @NonNull DirectoryEntry[] directories;
+
+        BookEntry(@Nullable String id,
+                  boolean isDemoSample,
+                  @NonNull FileOrder fileOrder,
+                  @NonNull DirectoryEntry[] directories) {
+            this.id = id;
+            this.isDemoSample = isDemoSample;
+            this.fileOrder = fileOrder;
+            this.directories = directories;
+        }
+
+        /**
+         * Whether both entries contain the same files, which means they have the same id.
+         */
+        boolean hasSameContents(@NonNull DirectoryEntry[] otherDirectories) {
+            if (directories.length != otherDirectories.length)
+                return false;
+            for (int i = 0; i < directories.length; ++i) {
+                if (!directories[i].hasSameContents(otherDirectories[i]))
+                    return false;
+            }
+            return true;
+        }
+
+        @NonNull
+        Map<String, DirectoryEntry> getDirectoriesByPath() {
+            return BookEntry.getDirectoriesByPath(directories);
+        }
+
+        @NonNull
+        static Map<String, DirectoryEntry> getDirectoriesByPath(
+                @NonNull DirectoryEntry[] directories) {
+            Map<String, DirectoryEntry> directoriesByPath = new HashMap<>(directories.length);
+            for (DirectoryEntry directory : directories)
+                directoriesByPath.put(directory.relativePath, directory);
+            return directoriesByPath;
+        }
+
+        /**
+         * Sort the contents of all directories in the order and arrange the directories in the
+         * corresponding order of traversal.
+         */
+        @NonNull
+        static DirectoryEntry[] sort(
+                @NonNull DirectoryEntry[] directories, @NonNull FileOrder order) {
+            if (directories.length == 0)
+                return directories;
+
+            Map<String, DirectoryEntry> directoriesByPath = getDirectoriesByPath(directories);
+            List<DirectoryEntry> sortedDirectories = new ArrayList<>(directories.length);
+            addSortedRecursive(directories[0], directoriesByPath, order, sortedDirectories);
+            return sortedDirectories.toArray(new DirectoryEntry[sortedDirectories.size()]);
+        }
+
+        private static void addSortedRecursive(
+                @NonNull DirectoryEntry directory,
+                @NonNull Map<String, DirectoryEntry> directoriesByPath,
+                @NonNull FileOrder order,
+                @NonNull List<DirectoryEntry> sortedDirectories) {
+            DirectoryEntry sortedDirectory = directory.sorted(order);
+            sortedDirectories.add(sortedDirectory);
+            for (int i = 0; i < sortedDirectory.childNames.length; ++i) {
+                if (sortedDirectory.childLengths[i] == DirectoryEntry.DIRECTORY) {
+                    String childPath =
+                            directory.relativePath + File.separator + sortedDirectory.childNames[i];
+                    DirectoryEntry subdirectory = directoriesByPath.get(childPath);
+                    if (subdirectory != null) {
+                        addSortedRecursive(
+                                subdirectory, directoriesByPath, order, sortedDirectories);
+                    }
+                }
+            }
+        }
+
+        @Nullable
+        FileSet toFileSet(@NonNull File bookDirectory) {
+            return toFileSet(bookDirectory, null);
+        }
+
+        /**
+         * @param fileDurations durations of files by their relative paths, if known.
+         */
+        @Nullable
+        FileSet toFileSet(
+                @NonNull File bookDirectory, @Nullable final Map<String, Long> fileDurations) {
+            if (id == null)
+                return null;
+
+            final BookFiles.Builder files = new BookFiles.Builder(bookDirectory);
+            final List<Long> durations = new ArrayList<>();
+            visitFiles(directories, fileOrder, new FileVisitor() {
+                @Override
+                public void onFile(@NonNull String relativePath, long length) {
+                    files.add(relativePath);
+                    if (fileDurations != null) {
+                        Long duration = fileDurations.get(relativePath);
+                        durations.add(duration != null ? duration : 0);
+                    }
+                }
+            });
+
+            long[] durationsMs = null;
+            if (fileDurations != null) {
+                durationsMs = new long[durations.size()];
+                for (int i = 0; i < durationsMs.length; ++i)
+                    durationsMs[i] = durations.get(i);
+            }
+            return new FileSet(id, bookDirectory, files.build(), durationsMs, isDemoSample);
+        }
+
+        /**
+         * Visit the files of a book in the directories in the scanning order. Audio files
+         * that are too short to be played are skipped unless the order includes them.
+         */
+        static void visitFiles(@NonNull DirectoryEntry[] directories,
+                               @NonNull FileOrder order,
+                               @NonNull final FileVisitor visitor) {
+            if (directories.length == 0)
+                return;
+            if (order.includesShortFiles()) {
+                visitDirectory(directories, 0, visitor);
+            } else {
+                visitDirectory(directories, 0, new FileVisitor() {
+                    @Override
+                    public void onFile(@NonNull String relativePath, long length) {
+                        if (PruningRules.isAudioFileLongEnough(length))
+                            visitor.onFile(relativePath, length);
+                    }
+                });
+            }
+        }
+
+        // Returns the index of the first directory after the subtree of directories[index].
+        private static int visitDirectory(
+                @NonNull DirectoryEntry[] directories, int index, @NonNull FileVisitor visitor) {
+            DirectoryEntry directory = directories[index];
+            int nextIndex = index + 1;
+            for (int i = 0; i < directory.childNames.length; ++i) {
+                if (directory.childLengths[i] == DirectoryEntry.DIRECTORY) {
+                    if (nextIndex < directories.length)
+                        nextIndex = visitDirectory(directories, nextIndex, visitor);
+                } else {
+                    visitor.onFile(
+                            directory.relativePath + File.separator + directory.childNames[i],
+                            directory.childLengths[i]);
+                }
+            }
+            return nextIndex;
+        }
+    }
+
+    private final @NonNull File cacheFile;
+    private @Nullable Map<String, BookEntry> previousEntries;
+    private @Nullable Map<String, BookEntry> currentEntries;
+    private boolean isModified;
+
+    ScanCache(@NonNull File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    synchronized void beginScan() {
+        if (previousEntries == null)
+            previousEntries = load();
+        currentEntries = new HashMap<>(previousEntries.size());
+        isModified = false;
+    }
+
+    @Nullable
+    synchronized BookEntry get(@NonNull File bookDirectory) {
+        return previousEntries != null ? previousEntries.get(bookDirectory.getPath()) : null;
+    }
+
+    synchronized void put(@NonNull File bookDirectory, @NonNull BookEntry entry) {
+        String key = bookDirectory.getPath();
+        if (previousEntries == null || previousEntries.get(key) != entry)
+            isModified = true;
+        if (currentEntries != null)
+            currentEntries.put(key, entry);
+    }
+
+    /**
+     * Store a rescanned book directory outside of a full scan. A null entry removes the
+     * directory from the cache.
+     */
+    synchronized void update(@NonNull File bookDirectory, @Nullable BookEntry entry) {
+        if (previousEntries == null)
+            previousEntries = load();
+        String key = bookDirectory.getPath();
+        if (entry != null)
+            previousEntries.put(key, entry);
+        else
+            previousEntries.remove(key);
+        if (currentEntries != null) {
+            if (entry != null)
+                currentEntries.put(key, entry);
+            else
+                currentEntries.remove(key);
+        }
+        save(previousEntries);
+    }
+
+    /**
+     * Replace the cached entries with those put during the scan, dropping directories that
+     * no longer exist.
+     */
+    synchronized void finishScan() {
+        if (currentEntries == null || previousEntries == null)
+            return;
+
+        if (currentEntries.size() != previousEntries.size())
+            isModified = true;
+        previousEntries = currentEntries;
+        currentEntries = null;
+        if (isModified)
+            save(previousEntries);
+    }
+
+    /**
+     * End a scan that has not completed. The entries put during the scan replace the previous
+     * ones so that the next scan can reuse them, nothing is removed.
+     */
+    synchronized void abortScan() {
+        if (currentEntries == null || previousEntries == null)
+            return;
+
+        previousEntries.putAll(currentEntries);
+        currentEntries = null;
+        if (isModified)
+            save(previousEntries);
+    }
+
+    @NonNull
+    private Map<String, BookEntry> load() {
+        Map<String, BookEntry> entries = new HashMap<>();
+        if (!cacheFile.exists())
+            return entries;
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            int version = input.readInt();
+            if (version != FORMAT_VERSION)
+                return entries;
+
+            int count = input.readInt();
+            for (int i = 0; i < count; ++i) {
+                String path = input.readUTF();
+                entries.put(path, readEntry(input));
+            }
+        } catch (IOException e) {
+            // A corrupted cache only means a full scan.
+            entries.clear();
+        } finally {
+            closeQuietly(input);
+        }
+        return entries;
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void save(@NonNull Map<String, BookEntry> entries) {
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(entries.size());
+            for (Map.Entry<String, BookEntry> entry : entries.entrySet()) {
+                output.writeUTF(entry.getKey());
+                writeEntry(output, entry.getValue());
+            }
+            output.close();
+            output = null;
+            if (!tmpFile.renameTo(cacheFile))
+                tmpFile.delete();
+        } catch (IOException e) {
+            closeQuietly(output);
+            tmpFile.delete();
+        }
+    }
+
+    @NonNull
+    private static BookEntry readEntry(@NonNull DataInputStream input) throws IOException {
+        String id = input.readBoolean() ? input.readUTF() : null;
+        boolean isDemoSample = input.readBoolean();
+        int orderIndex = input.readByte();
+        if (orderIndex < 0 || orderIndex >= FileOrder.values().length)
+            throw new IOException("Invalid file order: " + orderIndex);
+        FileOrder fileOrder = FileOrder.values()[orderIndex];
+
+        int directoryCount = input.readInt();
+        DirectoryEntry[] directories = new DirectoryEntry[directoryCount];
+        for (int i = 0; i < directoryCount; ++i) {
+            String relativePath = input.readUTF();
+            long lastModified = input.readLong();
+            int childCount = input.readInt();
+            String[] childNames = new String[childCount];
+            long[] childLengths = new long[childCount];
+            for (int j = 0; j < childCount; ++j) {
+                childNames[j] = input.readUTF();
+                childLengths[j] = input.readLong();
+            }
+            directories[i] =
+                    new DirectoryEntry(relativePath, lastModified, childNames, childLengths);
+        }
+        return new BookEntry(id, isDemoSample, fileOrder, directories);
+    }
+
+    private static void writeEntry(@NonNull DataOutputStream output, @NonNull BookEntry entry)
+            throws IOException {
+        output.writeBoolean(entry.id != null);
+        if (entry.id != null)
+            output.writeUTF(entry.id);
+        output.writeBoolean(entry.isDemoSample);
+        output.writeByte(entry.fileOrder.ordinal());
+
+        output.writeInt(entry.directories.length);
+        for (DirectoryEntry directory : entry.directories) {
+            output.writeUTF(directory.relativePath);
+            output.writeLong(directory.lastModified);
+            output.writeInt(directory.childNames.length);
+            for (int i = 0; i < directory.childNames.length; ++i) {
+                output.writeUTF(directory.childNames[i]);
+                output.writeLong(directory.childLengths[i]);
+            }
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The platform specific parts of a scan. Keeping them behind this interface leaves
+ * ScanFilesTask free of Android classes so that it can be run on a plain JVM, e.g. by the
+ * scanner benchmark.
+ */
+interface ScanEnvironment {
+
+    /**
+     * Returns the audio books directories on all storage roots, they don't need to exist.
+     */
+    @NonNull
+    List<File> listAudioBooksDirectories();
+
+    /**
+     * Query the MediaStore for the audio files in the audio books directories. It's called
+     * at most once per scan and only when there are books that are not in the scan cache.
+     */
+    @NonNull
+    MediaStoreIndex queryMediaStore();
+
+    @NonNull
+    FilesystemAccess createFilesystemAccess(@NonNull AtomicInteger callCounter);
+}
@@ -1,151 +1,566 @@
 package com.studio4plus.homerplayer.filescanner;
 
-import android.content.Context;
-import android.os.Environment;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Base64;
 
-import com.studio4plus.homerplayer.util.DirectoryFilter;
-import com.studio4plus.homerplayer.util.FilesystemUtil;
-import com.studio4plus.homerplayer.util.OrFilter;
+import com.google.common.io.BaseEncoding;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class ScanFilesTask implements Callable<List<FileSet>> {
 
+    static final String SAMPLE_BOOK_FILE_NAME = ".sample";
     private static final String[] SUPPORTED_SUFFIXES = {".mp3", ".m4a", ".ogg"};
+    private static final int BATCH_SIZE = 50;
+    // The first batch is sent early so that something can be displayed quickly, later ones
+    // less often so that the UI isn't rebuilt all the time.
+    private static final long FIRST_BATCH_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long BATCH_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+    private static final FileAttributes[] NO_FILES = new FileAttributes[0];
 
-    private final @NonNull Context applicationContext;
-    private final @NonNull String audioBooksDirectoryName;
+    private final @NonNull ScanEnvironment environment;
+    private final @NonNull ScanCache scanCache;
+    private final @NonNull SavedStateLookup savedStateLookup;
+    private final @Nullable ExecutorService scanWorkers;
+    private final @Nullable ScanProgressListener progressListener;
+    private final @NonNull ScanStats stats = new ScanStats();
+    private final @NonNull FilesystemAccess filesystem;
 
-    ScanFilesTask(@NonNull Context applicationContext, @NonNull String audioBooksDirectoryName) {
-        this.applicationContext = applicationContext;
-        this.audioBooksDirectoryName = audioBooksDirectoryName;
+    private @Nullable MediaStoreIndex mediaStoreIndex;
+    private volatile boolean isCancelled;
+
+    private final @NonNull List<FileSet> pendingBatch = new ArrayList<>();
+    private long lastBatchTimeNs;
+    private boolean isFirstBatch = true;
+
+    /**
+     * @param scanWorkers if not null, the storage roots and book directories are scanned
+     *                    in parallel on this executor. The result is the same as that of
+     *                    a sequential scan.
+     * @param progressListener if not null, receives the FileSets in batches as they are found.
+     *                         It is called on the scanning thread.
+     */
+    ScanFilesTask(
+            @NonNull ScanEnvironment environment,
+            @NonNull ScanCache scanCache,
+            @NonNull SavedStateLookup savedStateLookup,
+            @Nullable ExecutorService scanWorkers,
+            @Nullable ScanProgressListener progressListener) {
+        this.environment = environment;
+        this.scanCache = scanCache;
+        this.savedStateLookup = savedStateLookup;
+        this.scanWorkers = scanWorkers;
+        this.progressListener = progressListener;
+        this.filesystem = environment.createFilesystemAccess(stats.filesystemCalls);
     }
 
+    /**
+     * Throws CancellationException if the scan has been cancelled.
+     */
     @Override
     public List<FileSet> call() throws Exception {
-        return scanAudioBooksDirectories();
+        lastBatchTimeNs = System.nanoTime();
+        scanCache.beginScan();
+        boolean isComplete = false;
+        try {
+            List<FileSet> fileSets = scanAudioBooksDirectories();
+            checkCancelled();
+            isComplete = true;
+            return fileSets;
+        } finally {
+            if (isComplete)
+                scanCache.finishScan();
+            else
+                scanCache.abortScan();
+        }
     }
 
-    private List<FileSet> scanAudioBooksDirectories() {
-        List<FileSet> fileSets = new ArrayList<>();
-        List<File> dirsToScan = FilesystemUtil.listRootDirs(applicationContext);
-        File defaultStorage = Environment.getExternalStorageDirectory();
-        if (!containsByValue(dirsToScan, defaultStorage))
-            dirsToScan.add(defaultStorage);
+    /**
+     * Stop the scan before it gets to the next book directory. It may be called on any thread.
+     */
+    public void cancel() {
+        isCancelled = true;
+    }
+
+    @NonNull
+    public ScanStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Scan a single book directory, listing all its directories regardless of the cached state,
+     * and update the cache.
+     * Returns null if the directory doesn't exist or contains no audio files.
+     */
+    @Nullable
+    FileSet rescanBookDirectory(@NonNull File bookDirectory) {
+        FileAttributes attributes = filesystem.stat(bookDirectory);
+        if (attributes == null || !attributes.isDirectory) {
+            scanCache.update(bookDirectory, null);
+            return null;
+        }
+        PruningRules rules = readPruningRules(bookDirectory.getParentFile());
+        if (rules.isBookPruned(attributes.name)) {
+            stats.prunedDirectories.incrementAndGet();
+            scanCache.update(bookDirectory, null);
+            return null;
+        }
+        stats.rescannedDirectories.incrementAndGet();
+        ScanCache.BookEntry entry =
+                createBookEntry(attributes, rules, scanCache.get(bookDirectory), true);
+        scanCache.update(bookDirectory, entry);
+        return entry.toFileSet(bookDirectory);
+    }
+
+    private List<FileSet> scanAudioBooksDirectories() throws Exception {
+        List<File> audioBooksDirs = environment.listAudioBooksDirectories();
+
+        if (scanWorkers != null)
+            return scanInParallel(audioBooksDirs, scanWorkers);
+        else
+            return scanSequentially(audioBooksDirs);
+    }
 
-        for (File rootDir : dirsToScan) {
-            File audioBooksDir = new File(rootDir, audioBooksDirectoryName);
-            scanAndAppendBooks(audioBooksDir, fileSets);
+    private List<FileSet> scanSequentially(List<File> audioBooksDirs) {
+        List<FileSet> fileSets = new ArrayList<>();
+        for (File audioBooksDir : audioBooksDirs) {
+            AudioBooksListing listing = listBookDirectories(audioBooksDir);
+            if (listing != null) {
+                for (FileAttributes directory : listing.bookDirectories) {
+                    checkCancelled();
+                    appendFileSet(fileSets, scanBookDirectory(directory, listing.rules));
+                }
+            }
         }
         return fileSets;
     }
 
+    // Each storage root is listed in a separate task and each book directory is scanned in
+    // a separate task. The results are collected in the order in which the tasks were created
+    // so the list is identical to the one produced by scanSequentially.
+    private List<FileSet> scanInParallel(
+            List<File> audioBooksDirs, ExecutorService executor) throws Exception {
+        List<Future<AudioBooksListing>> listings = new ArrayList<>(audioBooksDirs.size());
+        List<Future<FileSet>> bookScans = new ArrayList<>();
+        try {
+            for (final File audioBooksDir : audioBooksDirs) {
+                listings.add(executor.submit(new Callable<AudioBooksListing>() {
+                    @Override
+                    public AudioBooksListing call() {
+                        return listBookDirectories(audioBooksDir);
+                    }
+                }));
+            }
 
-    private void scanAndAppendBooks(File audioBooksDir, List<FileSet> fileSets) {
-        if (audioBooksDir.exists() && audioBooksDir.isDirectory() && audioBooksDir.canRead()) {
-            File[] audioBookDirs = audioBooksDir.listFiles(new DirectoryFilter());
-            if (audioBookDirs != null) {
-                for (File directory : audioBookDirs) {
-                    FileSet fileSet = createFileSet(directory);
-                    if (fileSet != null && !fileSets.contains(fileSet))
-                        fileSets.add(fileSet);
+            for (Future<AudioBooksListing> listingResult : listings) {
+                final AudioBooksListing listing = getResult(listingResult);
+                if (listing != null) {
+                    for (final FileAttributes directory : listing.bookDirectories) {
+                        bookScans.add(executor.submit(new Callable<FileSet>() {
+                            @Override
+                            public FileSet call() {
+                                checkCancelled();
+                                return scanBookDirectory(directory, listing.rules);
+                            }
+                        }));
+                    }
                 }
             }
+
+            List<FileSet> fileSets = new ArrayList<>(bookScans.size());
+            for (Future<FileSet> bookScan : bookScans)
+                appendFileSet(fileSets, getResult(bookScan));
+            return fileSets;
+        } finally {
+            // No-op for completed tasks, stops the remaining ones on error.
+            cancelAll(listings);
+            cancelAll(bookScans);
         }
     }
 
+    private void checkCancelled() {
+        if (isCancelled)
+            throw new CancellationException("Scan cancelled");
+    }
+
     @Nullable
-    private FileSet createFileSet(File bookDirectory) {
-        File[] allFiles = getAllAudioFiles(bookDirectory);
-        int bookDirectoryPathLength = bookDirectory.getAbsolutePath().length();
+    private AudioBooksListing listBookDirectories(File audioBooksDir) {
+        // Null if the directory doesn't exist or can't be read.
+        String[] names = filesystem.list(audioBooksDir);
+        if (names == null)
+            return null;
 
-        ByteBuffer bufferLong = ByteBuffer.allocate(Long.SIZE);
-        try {
-            MessageDigest digest = MessageDigest.getInstance("MD5");
-            for (File file : allFiles) {
-                String path = file.getAbsolutePath();
-                String relativePath = path.substring(bookDirectoryPathLength);
-
-                // TODO: what if the same book is in two directories?
-                bufferLong.putLong(0, file.length());
-                digest.update(relativePath.getBytes());
-                digest.update(bufferLong);
+        PruningRules rules = Arrays.asList(names).contains(PruningRules.IGNORE_FILE_NAME)
+                ? readPruningRules(audioBooksDir)
+                : PruningRules.DEFAULT;
+        List<FileAttributes> directories = new ArrayList<>(names.length);
+        for (String name : names) {
+            if (rules.isBookPruned(name)) {
+                // Files are skipped too, without checking.
+                stats.prunedNames.incrementAndGet();
+                continue;
             }
-            String id = Base64.encodeToString(digest.digest(), Base64.NO_PADDING | Base64.NO_WRAP);
-            if (allFiles.length > 0) {
-                File sampleIndicator = new File(bookDirectory, FileScanner.SAMPLE_BOOK_FILE_NAME);
-                boolean isDemoSample = sampleIndicator.exists();
-                return new FileSet(id, bookDirectory, allFiles, isDemoSample);
-            } else {
-                return null;
+            FileAttributes attributes = filesystem.stat(audioBooksDir, name);
+            if (attributes != null && attributes.isDirectory)
+                directories.add(attributes);
+        }
+        return new AudioBooksListing(rules, directories);
+    }
+
+    @NonNull
+    private PruningRules readPruningRules(@Nullable File audioBooksDir) {
+        if (audioBooksDir == null)
+            return PruningRules.DEFAULT;
+        return PruningRules.fromIgnoreFile(
+                filesystem.readLines(new File(audioBooksDir, PruningRules.IGNORE_FILE_NAME)));
+    }
+
+    private void appendFileSet(List<FileSet> fileSets, @Nullable FileSet fileSet) {
+        if (fileSet != null && !fileSets.contains(fileSet)) {
+            fileSets.add(fileSet);
+            if (progressListener != null) {
+                pendingBatch.add(fileSet);
+                maybeSendBatch(progressListener);
             }
-        } catch (NoSuchAlgorithmException e) {
-            // Never happens.
-            e.printStackTrace();
-            throw new RuntimeException("MD5 not available");
         }
     }
 
+    // There is no need to send the last batch, the listener receives the complete result
+    // anyway.
+    private void maybeSendBatch(@NonNull ScanProgressListener listener) {
+        long nowNs = System.nanoTime();
+        long intervalNs = isFirstBatch ? FIRST_BATCH_INTERVAL_NS : BATCH_INTERVAL_NS;
+        if (pendingBatch.size() >= BATCH_SIZE || nowNs - lastBatchTimeNs >= intervalNs) {
+            listener.onFileSetsFound(new ArrayList<>(pendingBatch));
+            pendingBatch.clear();
+            lastBatchTimeNs = nowNs;
+            isFirstBatch = false;
+        }
+    }
+
+    @Nullable
+    private FileSet scanBookDirectory(FileAttributes bookDirectory, PruningRules rules) {
+        ScanCache.BookEntry cachedEntry = scanCache.get(bookDirectory.file);
+        if (cachedEntry == null) {
+            FileSet fileSet = scanIndexedBookDirectory(bookDirectory, rules);
+            if (fileSet != null)
+                return fileSet;
+        }
+
+        ScanCache.BookEntry entry = createBookEntry(bookDirectory, rules, cachedEntry, false);
+        if (entry == cachedEntry)
+            stats.skippedDirectories.incrementAndGet();
+        else
+            stats.rescannedDirectories.incrementAndGet();
+        scanCache.put(bookDirectory.file, entry);
+        return entry.toFileSet(bookDirectory.file);
+    }
+
+    // Create the FileSet of a book that is not in the cache from the MediaStore instead of
+    // listing all its directories. Returns null if the book has not been fully indexed.
+    // The cache entry is listed again by the next scan.
+    @Nullable
+    private FileSet scanIndexedBookDirectory(FileAttributes bookDirectory, PruningRules rules) {
+        MediaStoreIndex index = getMediaStoreIndex();
+        ScanCache.DirectoryEntry[] directories =
+                index.getBookDirectories(bookDirectory, rules, filesystem);
+        if (directories == null)
+            return null;
+
+        stats.indexedDirectories.incrementAndGet();
+        ScanCache.BookEntry entry = createNewBookEntry(bookDirectory, directories, null);
+        scanCache.put(bookDirectory.file, entry);
+        return entry.toFileSet(
+                bookDirectory.file, index.getBookFileDurations(bookDirectory.file));
+    }
 
     @NonNull
-    private File[] getAllAudioFiles(File directory) {
-        List<File> files = new ArrayList<>();
-        FileFilter audioFiles = new FileFilter() {
-            @Override
-            public boolean accept(File pathname) {
-                return isAudioFile(pathname);
-            }
-        };
+    private synchronized MediaStoreIndex getMediaStoreIndex() {
+        if (mediaStoreIndex == null)
+            mediaStoreIndex = environment.queryMediaStore();
+        return mediaStoreIndex;
+    }
+
+    /**
+     * Create the cache entry for a book directory.
+     * Listings of directories that haven't been modified since previousEntry was created are
+     * reused unless forceListing is set. If nothing has changed previousEntry itself is
+     * returned. The id is only computed if the files are different than in previousEntry.
+     *
+     * Books keep their file order while their files are unchanged. Otherwise the natural order
+     * is used unless there is saved state for the book in the legacy order (i.e. it has been
+     * played before the natural order was introduced and the saved file index refers to the
+     * legacy order). The legacy order also keeps the short audio files that were part of the
+     * id and file indices back then.
+     */
+    @NonNull
+    private ScanCache.BookEntry createBookEntry(
+            @NonNull FileAttributes bookDirectory,
+            @NonNull PruningRules rules,
+            @Nullable ScanCache.BookEntry previousEntry,
+            boolean forceListing) {
+        Map<String, ScanCache.DirectoryEntry> previousDirectories =
+                previousEntry != null && !forceListing
+                        ? previousEntry.getDirectoriesByPath()
+                        : Collections.<String, ScanCache.DirectoryEntry>emptyMap();
+        FileOrder walkOrder = previousEntry != null ? previousEntry.fileOrder : FileOrder.LEGACY;
+        BookWalk walk = new BookWalk(bookDirectory.name, rules, previousDirectories, walkOrder);
+        addDirectoryRecursive(bookDirectory, "", 0, walk);
+        ScanCache.DirectoryEntry[] directories =
+                walk.directories.toArray(new ScanCache.DirectoryEntry[walk.directories.size()]);
 
-        FileFilter filesAndDirectoriesFilter = new OrFilter(audioFiles, new DirectoryFilter());
-        addFilesRecursive(directory, filesAndDirectoriesFilter, files);
-        return files.toArray(new File[files.size()]);
+        if (previousEntry != null && previousEntry.hasSameContents(directories)) {
+            if (walk.listedDirectoryCount == 0)
+                return previousEntry;
+
+            stats.reusedIds.incrementAndGet();
+            return new ScanCache.BookEntry(previousEntry.id, previousEntry.isDemoSample,
+                    previousEntry.fileOrder, directories);
+        }
+
+        return createNewBookEntry(bookDirectory, directories, walkOrder);
     }
 
+    /**
+     * Create the entry for a new book or a book whose files have changed and choose its file
+     * order.
+     * @param currentOrder the order of directories, null if they are not sorted.
+     */
+    @NonNull
+    private ScanCache.BookEntry createNewBookEntry(
+            @NonNull FileAttributes bookDirectory,
+            @NonNull ScanCache.DirectoryEntry[] directories,
+            @Nullable FileOrder currentOrder) {
+        FileOrder fileOrder = FileOrder.LEGACY;
+        if (currentOrder != FileOrder.LEGACY)
+            directories = ScanCache.BookEntry.sort(directories, FileOrder.LEGACY);
+        String id = computeId(directories, FileOrder.LEGACY);
+        if (id != null && !savedStateLookup.hasSavedState(id)) {
+            fileOrder = FileOrder.NATURAL;
+            directories = ScanCache.BookEntry.sort(directories, FileOrder.NATURAL);
+            id = computeId(directories, FileOrder.NATURAL);
+        }
 
-    private void addFilesRecursive(File directory, FileFilter filter, List<File> allFiles) {
-        File[] files = directory.listFiles(filter);
-        // listFiles may return null. Skip such directories.
-        if (files == null)
+        boolean isDemoSample = false;
+        if (id != null) {
+            File sampleIndicator =
+                    new File(bookDirectory.file, SAMPLE_BOOK_FILE_NAME);
+            isDemoSample = filesystem.exists(sampleIndicator);
+        }
+        return new ScanCache.BookEntry(id, isDemoSample, fileOrder, directories);
+    }
+
+    // The attributes of each directory are read before it is listed (usually when listing its
+    // parent) so that changes made during the scan are picked up by the next one.
+    private void addDirectoryRecursive(
+            @NonNull FileAttributes directory,
+            @NonNull String relativePath,
+            int depth,
+            @NonNull BookWalk walk) {
+        Object directoryKey = filesystem.getDirectoryKey(directory);
+        if (directoryKey != null && !walk.ancestorKeys.add(directoryKey)) {
+            // The directory contains itself, e.g. through a symlink. Only loops are cut, the same
+            // directory linked twice in different places is scanned twice as before.
+            stats.directoryLoops.incrementAndGet();
+            walk.directories.add(emptyDirectoryEntry(relativePath));
             return;
+        }
 
-        Arrays.sort(files, new Comparator<File>() {
-            @Override
-            public int compare(File lhs, File rhs) {
-                return lhs.getName().compareToIgnoreCase(rhs.getName());
-            }
-        });
+        ScanCache.DirectoryEntry entry = walk.previousDirectories.get(relativePath);
+        FileAttributes[] children = null;
+        if (entry == null || entry.lastModified != directory.lastModified ||
+                entry.lastModified == ScanCache.DirectoryEntry.UNKNOWN_MODIFICATION_TIME ||
+                entry.hasShortAudioFiles()) {
+            // Books may be hidden from music players with .nomedia, it's respected only in
+            // their subdirectories.
+            children = listDirectory(directory.file, walk.fileOrder, depth > 0);
+            entry = createDirectoryEntry(relativePath, directory.lastModified, children);
+            ++walk.listedDirectoryCount;
+        } else {
+            stats.reusedListings.incrementAndGet();
+        }
+        walk.directories.add(entry);
 
-        for (File file : files) {
-            if (file.isDirectory()) {
-                addFilesRecursive(file, filter, allFiles);
-            } else {
-                allFiles.add(file);
+        for (int i = 0; i < entry.childNames.length; ++i) {
+            if (entry.childLengths[i] == ScanCache.DirectoryEntry.DIRECTORY) {
+                String name = entry.childNames[i];
+                String childPath = relativePath + File.separator + name;
+                if (walk.rules.isDirectoryPruned(walk.bookName, name, childPath, depth + 1)) {
+                    stats.prunedDirectories.incrementAndGet();
+                    walk.directories.add(emptyDirectoryEntry(childPath));
+                    continue;
+                }
+                FileAttributes subdirectory =
+                        children != null ? children[i] : filesystem.stat(directory.file, name);
+                if (subdirectory != null && subdirectory.isDirectory)
+                    addDirectoryRecursive(subdirectory, childPath, depth + 1, walk);
+                else
+                    // Removed since the listing was cached, the next scan will list it again.
+                    walk.directories.add(emptyDirectoryEntry(childPath));
             }
         }
+
+        if (directoryKey != null)
+            walk.ancestorKeys.remove(directoryKey);
+    }
+
+    // Returns the audio files and subdirectories in the order. Hidden and short audio files are
+    // included, they are part of the ids of legacy books. Hidden subdirectories are pruned by
+    // the caller.
+    @NonNull
+    private FileAttributes[] listDirectory(
+            @NonNull File directory, @NonNull FileOrder order, boolean respectNoMedia) {
+        String[] names = filesystem.list(directory);
+        // list may return null. Treat such directories as empty.
+        if (names == null)
+            return NO_FILES;
+        if (respectNoMedia && Arrays.asList(names).contains(PruningRules.NO_MEDIA_FILE_NAME)) {
+            stats.prunedDirectories.incrementAndGet();
+            return NO_FILES;
+        }
+
+        List<FileAttributes> files = new ArrayList<>(names.length);
+        for (String name : names) {
+            FileAttributes attributes = filesystem.stat(directory, name);
+            if (attributes != null && (attributes.isDirectory || isAudioFile(name)))
+                files.add(attributes);
+        }
+
+        String[] fileNames = new String[files.size()];
+        for (int i = 0; i < fileNames.length; ++i)
+            fileNames[i] = files.get(i).name;
+        int[] indices = order.sort(fileNames);
+        FileAttributes[] sortedFiles = new FileAttributes[indices.length];
+        for (int i = 0; i < indices.length; ++i)
+            sortedFiles[i] = files.get(indices[i]);
+        return sortedFiles;
     }
 
-    private <Type> boolean containsByValue(List<Type> items, Type needle) {
-        for (Type item : items)
-            if (item.equals(needle))
-                return true;
-        return false;
+    @NonNull
+    private static ScanCache.DirectoryEntry createDirectoryEntry(
+            @NonNull String relativePath, long lastModified, @NonNull FileAttributes[] files) {
+        String[] childNames = new String[files.length];
+        long[] childLengths = new long[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            FileAttributes file = files[i];
+            childNames[i] = file.name;
+            childLengths[i] = file.isDirectory ? ScanCache.DirectoryEntry.DIRECTORY : file.length;
+        }
+        return new ScanCache.DirectoryEntry(relativePath, lastModified, childNames, childLengths);
+    }
+
+    @NonNull
+    private static ScanCache.DirectoryEntry emptyDirectoryEntry(@NonNull String relativePath) {
+        return new ScanCache.DirectoryEntry(
+                relativePath,
+                ScanCache.DirectoryEntry.UNKNOWN_MODIFICATION_TIME,
+                new String[0],
+                new long[0]);
+    }
+
+    /**
+     * Compute the book id from the relative paths and lengths of its files in the order.
+     * Returns null if there are no files.
+     */
+    @Nullable
+    private static String computeId(
+            @NonNull ScanCache.DirectoryEntry[] directories, @NonNull FileOrder order) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            final ByteBuffer bufferLong = ByteBuffer.allocate(Long.SIZE);
+            final int[] fileCount = { 0 };
+            ScanCache.BookEntry.visitFiles(directories, order, new ScanCache.FileVisitor() {
+                @Override
+                public void onFile(@NonNull String relativePath, long length) {
+                    // TODO: what if the same book is in two directories?
+                    bufferLong.putLong(0, length);
+                    digest.update(relativePath.getBytes());
+                    // Note: the position of the buffer is not reset, so only the first file's
+                    // length (and Long.SIZE - 8 zero bytes) is part of the digest. Any change
+                    // here changes the ids of all books and their saved state is lost.
+                    digest.update(bufferLong);
+                    ++fileCount[0];
+                }
+            });
+            if (fileCount[0] == 0)
+                return null;
+            return BaseEncoding.base64().omitPadding().encode(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // Never happens.
+            e.printStackTrace();
+            throw new RuntimeException("MD5 not available");
+        }
+    }
+
+    private static <V> V getResult(Future<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            else if (cause instanceof Error)
+                throw (Error) cause;
+            else
+                throw e;
+        }
+    }
+
+    private static <V> void cancelAll(List<Future<V>> futures) {
+        for (Future<V> future : futures)
+            future.cancel(true);
+    }
+
+    private static class AudioBooksListing {
+        final @NonNull PruningRules rules;
+        final @NonNull List<FileAttributes> bookDirectories;
+
+        AudioBooksListing(
+                @NonNull PruningRules rules, @NonNull List<FileAttributes> bookDirectories) {
+            this.rules = rules;
+            this.bookDirectories = bookDirectories;
+        }
+    }
+
+    private static class BookWalk {
+        final @NonNull String bookName;
+        final @NonNull PruningRules rules;
+        final @NonNull Map<String, ScanCache.DirectoryEntry> previousDirectories;
+        final @NonNull FileOrder fileOrder;
+        final @NonNull List<ScanCache.DirectoryEntry> directories = new ArrayList<>();
+        // Keys of the directories on the path from the book directory to the current one.
+        final @NonNull Set<Object> ancestorKeys = new HashSet<>();
+        int listedDirectoryCount;
+
+        BookWalk(@NonNull String bookName,
+                 @NonNull PruningRules rules,
+                 @NonNull Map<String, ScanCache.DirectoryEntry> previousDirectories,
+                 @NonNull FileOrder fileOrder) {
+            this.bookName = bookName;
+            this.rules = rules;
+            this.previousDirectories = previousDirectories;
+            this.fileOrder = fileOrder;
+        }
     }
 
-    private static boolean isAudioFile(File file) {
-        String lowerCaseFileName = file.getName().toLowerCase();
+    static boolean isAudioFile(@NonNull String fileName) {
+        String lowerCaseFileName = fileName.toLowerCase();
         for (String suffix : SUPPORTED_SUFFIXES)
             if (lowerCaseFileName.endsWith(suffix))
                 return true;
@@ -0,0 +1,13 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+public interface ScanProgressListener {
+    /**
+     * Called with FileSets found so far, each FileSet is reported only once.
+     * The complete list is delivered with the result of the scan.
+     */
+    void onFileSetsFound(@NonNull List<FileSet> fileSets);
+}
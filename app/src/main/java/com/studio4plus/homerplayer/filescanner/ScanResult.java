@@ -0,0 +1,27 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of a full scan of the audio books directories.
+ */
+public class ScanResult {
+
+    public final @NonNull List<FileSet> fileSets;
+    // Set if a newer scan has been requested before this one completed. The result of the newer
+    // scan is delivered to its own future. The fileSets are empty if the scan was cancelled.
+    public final boolean isSuperseded;
+
+    ScanResult(@NonNull List<FileSet> fileSets, boolean isSuperseded) {
+        this.fileSets = fileSets;
+        this.isSuperseded = isSuperseded;
+    }
+
+    @NonNull
+    static ScanResult cancelled() {
+        return new ScanResult(Collections.<FileSet>emptyList(), true);
+    }
+}
@@ -0,0 +1,71 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counters collected during a single scan of the audio books directories.
+ * The counters may be updated from several scanning threads at once.
+ */
+public class ScanStats {
+
+    /**
+     * Book directories whose cached FileSet was reused because nothing in them has changed.
+     */
+    public final AtomicInteger skippedDirectories = new AtomicInteger();
+
+    /**
+     * Book directories that had to be listed and hashed again.
+     */
+    public final AtomicInteger rescannedDirectories = new AtomicInteger();
+
+    /**
+     * Directories whose cached listing was reused instead of listing them again.
+     */
+    public final AtomicInteger reusedListings = new AtomicInteger();
+
+    /**
+     * Rescanned books whose files haven't changed so their id didn't need to be computed.
+     */
+    public final AtomicInteger reusedIds = new AtomicInteger();
+
+    /**
+     * Calls that query the filesystem: directory listings and file attribute reads.
+     */
+    public final AtomicInteger filesystemCalls = new AtomicInteger();
+
+    /**
+     * Books that were not in the cache and were created from the MediaStore index without
+     * listing their directories.
+     */
+    public final AtomicInteger indexedDirectories = new AtomicInteger();
+
+    /**
+     * Directories skipped due to PruningRules.
+     */
+    public final AtomicInteger prunedDirectories = new AtomicInteger();
+
+    /**
+     * Hidden and ignored names skipped due to PruningRules without reading their attributes,
+     * files or directories.
+     */
+    public final AtomicInteger prunedNames = new AtomicInteger();
+
+    /**
+     * Directories that were not scanned because they are their own ancestors, e.g. through
+     * a symlink or a bind mount.
+     */
+    public final AtomicInteger directoryLoops = new AtomicInteger();
+
+    @Override
+    public String toString() {
+        return "skipped: " + skippedDirectories.get() +
+                ", rescanned: " + rescannedDirectories.get() +
+                ", reused listings: " + reusedListings.get() +
+                ", reused ids: " + reusedIds.get() +
+                ", from MediaStore: " + indexedDirectories.get() +
+                ", filesystem calls: " + filesystemCalls.get() +
+                ", pruned: " + prunedDirectories.get() +
+                ", pruned names: " + prunedNames.get() +
+                ", directory loops: " + directoryLoops.get();
+    }
+}
@@ -1,46 +1,65 @@
 package com.studio4plus.homerplayer.model;
 
+import android.support.annotation.Nullable;
+
 import com.google.common.base.Preconditions;
+import com.studio4plus.homerplayer.filescanner.BookFiles;
 import com.studio4plus.homerplayer.filescanner.FileSet;
 import com.studio4plus.homerplayer.util.DebugUtil;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 public class AudioBook {
 
     public final static long UNKNOWN_POSITION = -1;
+    // The stored duration of a file for which the player has reported no duration (0 or
+    // unset). It counts as 0ms so that the file doesn't keep the book's duration unknown.
+    final static long NO_DURATION = -1;
 
     public interface UpdateObserver {
+        void onAudioBookPositionUpdated(AudioBook audioBook);
         void onAudioBookStateUpdated(AudioBook audioBook);
     }
 
     public class Position {
         public final int fileIndex;
         public final long seekPosition;
-        public final File file;
 
         public Position(int fileIndex, long seekPosition) {
             this.fileIndex = fileIndex;
             this.seekPosition = seekPosition;
-            this.file = fileSet.files[fileIndex];
+        }
+
+        public File getFile() {
+            return fileSet.files.get(fileIndex);
         }
     }
 
     private final FileSet fileSet;
-    private List<Long> fileDurations;
+    private final String title;
+    // Sums of the durations of the first n files, durationSums[0] is 0. Only the first
+    // knownDurationCount + 1 entries are valid, durations are known for a prefix of the files.
+    private final long[] durationSums;
+    private int knownDurationCount;
+    // Durations of files after the known prefix that are known out of order (e.g. from the
+    // duration cache), 0 for unknown. Null if there are none.
+    private long[] laterFileDurations;
+    // The stored durations are read only when needed, see Storage.readAudioBookDurations.
+    private boolean areStoredFileDurationsRead;
     private ColourScheme colourScheme;
     private Position lastPosition;
+    private long lastPlayedTimeMs;
     private long totalDuration = UNKNOWN_POSITION;
 
     private UpdateObserver updateObserver;
 
     public AudioBook(FileSet fileSet) {
         this.fileSet = fileSet;
+        this.title = directoryToTitle(fileSet.directoryName);
         this.lastPosition = new Position(0, 0);
-        this.fileDurations = new ArrayList<>(fileSet.files.length);
+        this.durationSums = new long[fileSet.files.size() + 1];
     }
 
     public void setUpdateObserver(UpdateObserver updateObserver) {
@@ -48,22 +67,37 @@ public class AudioBook {
     }
 
     public String getTitle() {
-        return directoryToTitle(fileSet.directoryName);
+        return title;
     }
 
     public String getId() {
         return fileSet.id;
     }
 
+    File getDirectory() {
+        return fileSet.directory;
+    }
+
+    FileSet getFileSet() {
+        return fileSet;
+    }
+
     public Position getLastPosition() {
         return lastPosition;
     }
 
+    /**
+     * The time the position was last changed by playback, 0 if never.
+     */
+    public long getLastPlayedTimeMs() {
+        return lastPlayedTimeMs;
+    }
+
     public long getLastPositionTime(long lastFileSeekPosition) {
         int fullFileCount = lastPosition.fileIndex;
 
-        if (fullFileCount <= fileDurations.size()) {
-            return fileDurationSum(fullFileCount) + lastFileSeekPosition;
+        if (fullFileCount <= knownDurationCount) {
+            return durationSums[fullFileCount] + lastFileSeekPosition;
         } else {
             return UNKNOWN_POSITION;
         }
@@ -74,24 +108,43 @@ public class AudioBook {
     }
 
     public void offerFileDuration(File file, long durationMs) {
-        int index = Arrays.asList(fileSet.files).indexOf(file);
+        int index = getFileIndex(file);
         Preconditions.checkState(index >= 0);
-        Preconditions.checkState(index <= fileDurations.size(), "Duration set out of order.");
 
         // Only set the duration if unknown.
-        if (index == fileDurations.size()) {
-            fileDurations.add(durationMs);
-            if (fileDurations.size() == fileSet.files.length)
-                totalDuration = fileDurationSum(fileSet.files.length);
+        if (setFileDuration(index, durationMs > 0 ? durationMs : NO_DURATION)) {
+            updateTotalDuration();
+            notifyUpdateObserver();
+        }
+    }
+
+    /**
+     * Set the durations known in advance (e.g. from FileSet.fileDurations) for files whose
+     * duration is not known yet. Unknown (0) durations are skipped.
+     */
+    public void offerFileDurations(long[] durationsMs) {
+        if (mergeFileDurations(durationsMs)) {
+            updateTotalDuration();
             notifyUpdateObserver();
         }
     }
 
+    /**
+     * Offer the durations found by the scan, see FileSet.fileDurations.
+     */
+    void offerScannedFileDurations() {
+        if (fileSet.fileDurations != null)
+            offerFileDurations(fileSet.fileDurations);
+    }
+
     public List<File> getFilesWithNoDuration() {
-        int count = fileSet.files.length;
-        int firstIndex = fileDurations.size();
+        int count = fileSet.files.size();
+        int firstIndex = knownDurationCount;
         List<File> files = new ArrayList<>(count - firstIndex);
-        files.addAll(Arrays.asList(fileSet.files).subList(firstIndex, count));
+        for (int i = firstIndex; i < count; ++i) {
+            if (laterFileDurations == null || laterFileDurations[i] == 0)
+                files.add(fileSet.files.get(i));
+        }
         return files;
     }
 
@@ -102,29 +155,33 @@ public class AudioBook {
     public void updatePosition(long seekPosition) {
         DebugUtil.verifyIsOnMainThread();
         lastPosition = new Position(lastPosition.fileIndex, seekPosition);
-        notifyUpdateObserver();
+        lastPlayedTimeMs = System.currentTimeMillis();
+        notifyPositionObserver();
     }
 
     public void updateTotalPosition(long totalPositionMs) {
         Preconditions.checkArgument(totalPositionMs <= totalDuration);
 
-        long fullFileDurationSum = 0;
-        int fileIndex = 0;
-        for (; fileIndex < fileDurations.size(); ++fileIndex) {
-            long total = fullFileDurationSum + fileDurations.get(fileIndex);
-            if (totalPositionMs <= total)
-                break;
-            fullFileDurationSum = total;
+        // The first file that ends at or after the position.
+        int low = 0;
+        int high = knownDurationCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (durationSums[middle + 1] < totalPositionMs)
+                low = middle + 1;
+            else
+                high = middle;
         }
-        long seekPosition = totalPositionMs - fullFileDurationSum;
-        lastPosition = new Position(fileIndex, seekPosition);
-        notifyUpdateObserver();
+        long seekPosition = totalPositionMs - durationSums[low];
+        lastPosition = new Position(low, seekPosition);
+        lastPlayedTimeMs = System.currentTimeMillis();
+        notifyPositionObserver();
     }
 
     public void resetPosition() {
         DebugUtil.verifyIsOnMainThread();
         lastPosition = new Position(0, 0);
-        notifyUpdateObserver();
+        notifyPositionObserver();
     }
 
     public ColourScheme getColourScheme() {
@@ -138,44 +195,55 @@ public class AudioBook {
     public boolean advanceFile() {
         DebugUtil.verifyIsOnMainThread();
         int newIndex = lastPosition.fileIndex + 1;
-        boolean hasMoreFiles = newIndex < fileSet.files.length;
+        boolean hasMoreFiles = newIndex < fileSet.files.size();
         if (hasMoreFiles) {
             lastPosition = new Position(newIndex, 0);
-            notifyUpdateObserver();
+            lastPlayedTimeMs = System.currentTimeMillis();
+            notifyPositionObserver();
         }
 
         return hasMoreFiles;
     }
 
-    List<Long> getFileDurations() {
-        return fileDurations;
+    /**
+     * Returns the durations up to the last known one, 0 for unknown and NO_DURATION for files
+     * without a duration.
+     */
+    long[] getFileDurations() {
+        int count = knownDurationCount;
+        if (laterFileDurations != null) {
+            for (int i = laterFileDurations.length - 1; i >= count; --i) {
+                if (laterFileDurations[i] != 0) {
+                    count = i + 1;
+                    break;
+                }
+            }
+        }
+        long[] durations = new long[count];
+        for (int i = 0; i < knownDurationCount; ++i) {
+            long duration = durationSums[i + 1] - durationSums[i];
+            durations[i] = duration > 0 ? duration : NO_DURATION;
+        }
+        for (int i = knownDurationCount; i < count; ++i)
+            durations[i] = laterFileDurations[i];
+        return durations;
     }
 
     void restore(
-            ColourScheme colourScheme, int fileIndex, long seekPosition, List<Long> fileDurations) {
+            ColourScheme colourScheme, int fileIndex, long seekPosition, long lastPlayedTimeMs) {
         this.lastPosition = new Position(fileIndex, seekPosition);
+        this.lastPlayedTimeMs = lastPlayedTimeMs;
         if (colourScheme != null)
             this.colourScheme = colourScheme;
-        if (fileDurations != null) {
-            this.fileDurations = fileDurations;
-            if (fileDurations.size() == fileSet.files.length)
-                this.totalDuration = fileDurationSum(fileDurations.size());
-        }
     }
 
-    void restoreOldFormat(
-            ColourScheme colourScheme, String fileName, long seekPosition, List<Long> fileDurations) {
+    void restoreOldFormat(ColourScheme colourScheme, String fileName, long seekPosition) {
         if (colourScheme != null)
             this.colourScheme = colourScheme;
-        if (fileDurations != null) {
-            this.fileDurations = fileDurations;
-            if (fileDurations.size() == fileSet.files.length)
-                this.totalDuration = fileDurationSum(fileDurations.size());
-        }
 
         int fileIndex = -1;
-        for (int i = 0; i < fileSet.files.length; ++i) {
-            String path = fileSet.files[i].getAbsolutePath();
+        for (int i = 0; i < fileSet.files.size(); ++i) {
+            String path = fileSet.files.get(i).getAbsolutePath();
             if (path.endsWith(fileName)) {
                 fileIndex = i;
                 break;
@@ -186,18 +254,125 @@ public class AudioBook {
         }
     }
 
-    private long fileDurationSum(int fileCount) {
-        long totalPosition = 0;
-        for (int i = 0; i < fileCount; ++i) {
-            totalPosition += fileDurations.get(i);
+    boolean areStoredFileDurationsRead() {
+        return areStoredFileDurationsRead;
+    }
+
+    /**
+     * Set the stored durations, null if there are none. They are used for files whose
+     * duration is not known yet.
+     */
+    void restoreFileDurations(@Nullable long[] fileDurations) {
+        areStoredFileDurationsRead = true;
+        if (fileDurations != null && mergeFileDurations(fileDurations))
+            updateTotalDuration();
+    }
+
+    /**
+     * Whether this book replaces previousBook, e.g. after a file has been added to it and its
+     * id has changed: most of the files of the previous book are still there.
+     * Only the files are compared so it may be called on any thread.
+     */
+    boolean isReplacementOf(AudioBook previousBook) {
+        int[] newIndexes = getNewFileIndexes(previousBook.fileSet.files);
+        int matchingCount = 0;
+        for (int index : newIndexes) {
+            if (index >= 0)
+                ++matchingCount;
+        }
+        return matchingCount * 2 > newIndexes.length;
+    }
+
+    /**
+     * Take over the state of the book this one replaces, see isReplacementOf. The position is
+     * moved to the same file, found by its path.
+     */
+    void restoreFromPreviousBook(AudioBook previousBook) {
+        DebugUtil.verifyIsOnMainThread();
+        int[] newIndexes = getNewFileIndexes(previousBook.fileSet.files);
+        // If the file has been removed continue with the next one that is still there.
+        Position previousPosition = previousBook.getLastPosition();
+        for (int i = previousPosition.fileIndex; i < newIndexes.length; ++i) {
+            if (newIndexes[i] >= 0) {
+                long seekPosition = i == previousPosition.fileIndex
+                        ? previousPosition.seekPosition : 0;
+                lastPosition = new Position(newIndexes[i], seekPosition);
+                break;
+            }
         }
-        return totalPosition;
+        lastPlayedTimeMs = previousBook.getLastPlayedTimeMs();
+        if (previousBook.getColourScheme() != null)
+            colourScheme = previousBook.getColourScheme();
+        notifyPositionObserver();
+    }
+
+    // Returns the indexes of the files of a previous version of the book in this one, -1 for
+    // files that are gone.
+    private int[] getNewFileIndexes(BookFiles previousFiles) {
+        int[] newIndexes = new int[previousFiles.size()];
+        for (int i = 0; i < newIndexes.length; ++i)
+            newIndexes[i] = fileSet.files.indexOfRelativePath(previousFiles.getRelativePath(i));
+        return newIndexes;
+    }
+
+    // Returns true if any durations have been set.
+    private boolean mergeFileDurations(long[] durationsMs) {
+        int count = Math.min(durationsMs.length, fileSet.files.size());
+        boolean isUpdated = false;
+        for (int i = knownDurationCount; i < count; ++i)
+            isUpdated |= setFileDuration(i, durationsMs[i]);
+        return isUpdated;
+    }
+
+    // Sets the duration if it's not known yet, NO_DURATION included. Returns true if it's
+    // been set.
+    private boolean setFileDuration(int index, long durationMs) {
+        if (index < knownDurationCount || durationMs == 0)
+            return false;
+
+        if (index > knownDurationCount) {
+            if (laterFileDurations == null)
+                laterFileDurations = new long[fileSet.files.size()];
+            if (laterFileDurations[index] != 0)
+                return false;
+            laterFileDurations[index] = durationMs;
+            return true;
+        }
+
+        addFileDuration(durationMs);
+        // Extend the known prefix with the durations that have been known out of order.
+        while (laterFileDurations != null && knownDurationCount < laterFileDurations.length &&
+                laterFileDurations[knownDurationCount] != 0)
+            addFileDuration(laterFileDurations[knownDurationCount]);
+        if (laterFileDurations != null && knownDurationCount == laterFileDurations.length)
+            laterFileDurations = null;
+        return true;
+    }
+
+    private void addFileDuration(long durationMs) {
+        durationSums[knownDurationCount + 1] =
+                durationSums[knownDurationCount] + Math.max(0, durationMs);
+        ++knownDurationCount;
+    }
+
+    private void updateTotalDuration() {
+        if (knownDurationCount == fileSet.files.size())
+            totalDuration = durationSums[knownDurationCount];
+    }
+
+    private int getFileIndex(File file) {
+        return fileSet.files.indexOf(file);
     }
 
     private static String directoryToTitle(String directory) {
         return directory.replace('_', ' ');
     }
 
+    private void notifyPositionObserver() {
+        if (updateObserver != null)
+            updateObserver.onAudioBookPositionUpdated(this);
+    }
+
     private void notifyUpdateObserver() {
         if (updateObserver != null)
             updateObserver.onAudioBookStateUpdated(this);
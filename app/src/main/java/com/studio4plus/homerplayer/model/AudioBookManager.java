@@ -1,24 +1,28 @@
 package com.studio4plus.homerplayer.model;
 
+import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.MainThread;
 import android.support.annotation.NonNull;
 
 import com.crashlytics.android.Crashlytics;
 import com.studio4plus.homerplayer.ApplicationScope;
 import com.studio4plus.homerplayer.concurrency.SimpleFuture;
+import com.studio4plus.homerplayer.events.AudioBookDirectoryChangedEvent;
 import com.studio4plus.homerplayer.events.AudioBooksChangedEvent;
 import com.studio4plus.homerplayer.events.CurrentBookChangedEvent;
 import com.studio4plus.homerplayer.events.MediaStoreUpdateEvent;
 import com.studio4plus.homerplayer.filescanner.FileScanner;
 import com.studio4plus.homerplayer.filescanner.FileSet;
+import com.studio4plus.homerplayer.filescanner.ScanProgressListener;
+import com.studio4plus.homerplayer.filescanner.ScanResult;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -28,35 +32,77 @@ import de.greenrobot.event.EventBus;
 @ApplicationScope
 public class AudioBookManager {
 
-    private final List<AudioBook> audioBooks = new ArrayList<>();
     private final FileScanner fileScanner;
     private final Storage storage;
+    // Changes to the list of books are made by the reconciler, the main thread only switches
+    // to the updated library.
+    private final LibraryReconciler reconciler;
+    private final DurationPrecomputer durationPrecomputer;
+    private @NonNull Library library = Library.EMPTY;
+    // Ids of books that have been replaced by new books (e.g. after a file was added), mapped
+    // to the new ids.
+    private final Map<String, String> replacedBookIds = new HashMap<>();
     private AudioBook currentBook;
     private boolean isInitialized = false;
     private boolean isFirstScan = true;
+    // Set if the books from the last run have been shown before the first scan completed.
+    private boolean isRestoredFromSnapshot = false;
+    private final long creationTimeMs = SystemClock.elapsedRealtime();
+    // Set while the current book is picked temporarily during a scan, before the last
+    // played book has been found.
+    private boolean isCurrentBookProvisional = false;
 
     @Inject
     @MainThread
-    public AudioBookManager(EventBus eventBus, FileScanner fileScanner, Storage storage) {
+    public AudioBookManager(@ApplicationScope Context applicationContext,
+                            EventBus eventBus,
+                            FileScanner fileScanner,
+                            Storage storage) {
         this.fileScanner = fileScanner;
         this.storage = storage;
+        this.reconciler = new LibraryReconciler(storage);
+        this.durationPrecomputer = new DurationPrecomputer(applicationContext, eventBus, storage);
         eventBus.register(this);
+        restoreLibrarySnapshot();
     }
 
     @SuppressWarnings("UnusedDeclaration")
     @MainThread
     public void onEvent(MediaStoreUpdateEvent ignored) {
-        scanFiles();
+        // The MediaStore is updated after files are changed so most of the time the change has
+        // already been handled by rescanning the affected book. Only do a full scan otherwise.
+        if (!fileScanner.hasRecentLibraryActivity())
+            scanFiles();
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    @MainThread
+    public void onEvent(AudioBookDirectoryChangedEvent event) {
+        if (event.bookDirectory != null)
+            scanBookDirectory(event.bookDirectory);
+        else
+            scanFiles();
+    }
+
+    /**
+     * The current list of books. It doesn't change, a new Library is announced with
+     * AudioBooksChangedEvent.
+     */
+    @MainThread
+    @NonNull
+    public Library getLibrary() {
+        return library;
     }
 
     @MainThread
     public List<AudioBook> getAudioBooks() {
-        return audioBooks;
+        return library.getAudioBooks();
     }
 
     @MainThread
     public void setCurrentBook(String bookId) {
         AudioBook newBook = getById(bookId);
+        isCurrentBookProvisional = false;
         if (newBook != currentBook) {
             currentBook = getById(bookId);
             EventBus.getDefault().post(new CurrentBookChangedEvent(currentBook));
@@ -70,15 +116,12 @@ public class AudioBookManager {
 
     @MainThread
     public int getCurrentBookIndex() {
-        return audioBooks.indexOf(currentBook);
+        return currentBook != null ? library.indexOf(currentBook.getId()) : -1;
     }
 
     @MainThread
     public AudioBook getById(String id) {
-        for (AudioBook book : audioBooks)
-            if (book.getId().equals(id))
-                return book;
-        return null;
+        return library.getById(id);
     }
 
     @MainThread
@@ -93,131 +136,262 @@ public class AudioBookManager {
 
     @MainThread
     public void scanFiles() {
-        SimpleFuture<List<FileSet>> future = fileScanner.scanAudioBooksDirectories();
-        future.addListener(new SimpleFuture.Listener<List<FileSet>>() {
+        SimpleFuture<ScanResult> future = fileScanner.scanAudioBooksDirectories(
+                new ScanProgressListener() {
+                    @Override
+                    public void onFileSetsFound(@NonNull List<FileSet> fileSets) {
+                        processPartialScanResult(fileSets);
+                    }
+                });
+        future.addListener(new SimpleFuture.Listener<ScanResult>() {
             @Override
-            public void onResult(@NonNull List<FileSet> result) {
-                isInitialized = true;
-                processScanResult(result);
+            public void onResult(@NonNull ScanResult result) {
+                // The newer scan will deliver the up to date list.
+                if (result.isSuperseded)
+                    return;
+                processScanResult(result.fileSets);
             }
 
             @Override
             public void onException(@NonNull Throwable t) {
-                isInitialized = true;
+                setInitialized();
                 // TODO: clear the list of books?
                 Crashlytics.logException(t);
             }
         });
     }
 
+    /**
+     * Show the books from the last run while the first scan validates them.
+     */
     @MainThread
-    private void processScanResult(@NonNull List<FileSet> fileSets) {
-        if (isFirstScan && fileSets.isEmpty()) {
-            // The first scan may fail if it is just after booting and the SD card is not yet
-            // mounted. Retry in a while.
-            Handler handler = new Handler(Looper.myLooper());
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    scanFiles();
+    private void restoreLibrarySnapshot() {
+        reconciler.restoreSnapshot().addListener(new UpdateListener() {
+            @Override
+            public void onResult(@NonNull LibraryReconciler.Update update) {
+                if (update.isChanged) {
+                    isRestoredFromSnapshot = true;
+                    publish(update);
+                    updateCurrentBook(false);
+                    setInitialized();
+                    postAudioBooksChanged();
                 }
-            }, TimeUnit.SECONDS.toMillis(10));
-        }
+            }
+        });
+    }
+
+    @MainThread
+    private void scanBookDirectory(@NonNull final File bookDirectory) {
+        SimpleFuture<List<FileSet>> future = fileScanner.scanAudioBookDirectory(bookDirectory);
+        future.addListener(new SimpleFuture.Listener<List<FileSet>>() {
+            @Override
+            public void onResult(@NonNull List<FileSet> result) {
+                processBookDirectoryScanResult(bookDirectory, result);
+            }
+
+            @Override
+            public void onException(@NonNull Throwable t) {
+                Crashlytics.logException(t);
+            }
+        });
+    }
 
-        // This isn't very efficient but there shouldn't be more than a dozen audio books on the
-        // device.
-        List<AudioBook> booksToRemove = new ArrayList<>();
-        for (AudioBook audioBook : audioBooks) {
-            String id = audioBook.getId();
-            boolean isInFileSet = false;
-            for (FileSet fileSet : fileSets) {
-                if (id.equals(fileSet.id)) {
-                    isInFileSet = true;
-                    break;
+    /**
+     * Replace the book in bookDirectory with the result of rescanning that directory.
+     * The result contains at most one FileSet.
+     */
+    @MainThread
+    private void processBookDirectoryScanResult(
+            @NonNull File bookDirectory, @NonNull List<FileSet> fileSets) {
+        reconciler.replaceBookDirectory(bookDirectory, fileSets).addListener(
+                new UpdateListener() {
+                    @Override
+                    public void onResult(@NonNull LibraryReconciler.Update update) {
+                        if (update.isChanged) {
+                            publish(update);
+                            updateCurrentBook(true);
+                            postAudioBooksChanged();
+                            durationPrecomputer.schedule(library);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Add books found so far by a scan that is still in progress.
+     * Books are only removed when the scan is complete.
+     */
+    @MainThread
+    private void processPartialScanResult(@NonNull List<FileSet> fileSets) {
+        reconciler.addBooks(fileSets).addListener(new UpdateListener() {
+            @Override
+            public void onResult(@NonNull LibraryReconciler.Update update) {
+                if (update.isChanged) {
+                    publish(update);
+                    updateCurrentBook(false);
+                    setInitialized();
+                    postAudioBooksChanged();
                 }
             }
-            if (!isInFileSet)
-                booksToRemove.add(audioBook);
+        });
+    }
+
+    @MainThread
+    private void processScanResult(@NonNull final List<FileSet> fileSets) {
+        reconciler.replaceBooks(fileSets).addListener(new UpdateListener() {
+            @Override
+            public void onResult(@NonNull LibraryReconciler.Update update) {
+                setInitialized();
+                if (isFirstScan && fileSets.isEmpty())
+                    scheduleRetryScan();
+
+                publish(update);
+                updateCurrentBook(true);
+                // The books restored from the snapshot have already been announced.
+                if (update.isChanged || (isFirstScan && !isRestoredFromSnapshot))
+                    postAudioBooksChanged();
+                isFirstScan = false;
+                // Compute the durations of new books before they are started.
+                durationPrecomputer.schedule(library);
+            }
+
+            @Override
+            public void onException(@NonNull Throwable t) {
+                setInitialized();
+                super.onException(t);
+            }
+        });
+    }
+
+    // The first scan may fail if it is just after booting and the SD card is not yet mounted.
+    @MainThread
+    private void scheduleRetryScan() {
+        Handler handler = new Handler(Looper.myLooper());
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                scanFiles();
+            }
+        }, TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * Switch to the updated library. Apart from storing the state of new books it takes
+     * constant time.
+     */
+    @MainThread
+    private void publish(@NonNull LibraryReconciler.Update update) {
+        Library previousLibrary = library;
+        library = update.library;
+        replacedBookIds.putAll(update.replacedBookIds);
+        for (Map.Entry<String, String> ids : update.replacedBookIds.entrySet()) {
+            AudioBook previousBook = previousLibrary.getById(ids.getKey());
+            AudioBook newBook = library.getById(ids.getValue());
+            if (previousBook != null && newBook != null)
+                takeOverState(previousBook, newBook);
         }
-        if (booksToRemove.contains(currentBook))
+        if (currentBook != null && library.getById(currentBook.getId()) != currentBook) {
+            String newId = replacedBookIds.get(currentBook.getId());
             currentBook = null;
-        boolean audioBooksChanged = audioBooks.removeAll(booksToRemove);
-        LibraryContentType contentType = LibraryContentType.EMPTY;
-
-        for (FileSet fileSet : fileSets) {
-            if (getById(fileSet.id) == null) {
-                AudioBook audioBook = new AudioBook(fileSet);
-                storage.readAudioBookState(audioBook);
-                audioBook.setUpdateObserver(storage);
-                audioBooks.add(audioBook);
-                audioBooksChanged = true;
-            }
-            LibraryContentType newContentType = fileSet.isDemoSample
-                    ? LibraryContentType.SAMPLES_ONLY : LibraryContentType.USER_CONTENT;
-            if (newContentType.supersedes(contentType))
-                contentType = newContentType;
+            // Keep the selection on the book that has replaced it.
+            if (newId != null && !isCurrentBookProvisional)
+                setCurrentBook(newId);
         }
 
-        if (audioBooks.size() > 0) {
-            Collections.sort(audioBooks, new Comparator<AudioBook>() {
-                @Override
-                public int compare(AudioBook lhs, AudioBook rhs) {
-                    return lhs.getTitle().compareToIgnoreCase(rhs.getTitle());
+        if (!update.booksToStore.isEmpty()) {
+            storage.beginBatch();
+            try {
+                for (AudioBook audioBook : update.booksToStore) {
+                    storage.writeAudioBookState(audioBook);
+                    storage.writeAudioBookDurations(audioBook);
                 }
-            });
-
-            assignColoursToNewBooks();
+            } finally {
+                storage.endBatch();
+            }
         }
-        if (currentBook == null) {
-            String id = storage.getCurrentAudioBook();
-            if (getById(id) == null && audioBooks.size() > 0)
-                id = audioBooks.get(0).getId();
+    }
 
-            if (id != null)
-                setCurrentBook(id);
-        }
+    // The previous book may still be played, its position updates are passed on to the book
+    // that has replaced it.
+    @MainThread
+    private void takeOverState(
+            @NonNull AudioBook previousBook, @NonNull final AudioBook newBook) {
+        newBook.restoreFromPreviousBook(previousBook);
+        previousBook.setUpdateObserver(new AudioBook.UpdateObserver() {
+            @Override
+            public void onAudioBookPositionUpdated(AudioBook audioBook) {
+                newBook.restoreFromPreviousBook(audioBook);
+            }
 
-        if (audioBooksChanged || isFirstScan)
-            EventBus.getDefault().post(new AudioBooksChangedEvent(contentType));
+            @Override
+            public void onAudioBookStateUpdated(AudioBook audioBook) {
+                // Durations are also stored in the cache, by file.
+                storage.onAudioBookStateUpdated(audioBook);
+            }
+        });
+    }
 
-        isFirstScan = false;
+    @MainThread
+    private void postAudioBooksChanged() {
+        EventBus.getDefault().post(new AudioBooksChangedEvent(library));
     }
 
     @MainThread
-    public void resetAllBookProgress() {
-        for (AudioBook book : audioBooks) {
-            book.resetPosition();
+    private void setInitialized() {
+        if (!isInitialized) {
+            isInitialized = true;
+            Crashlytics.log("AudioBookManager: book list ready after " +
+                    (SystemClock.elapsedRealtime() - creationTimeMs) + "ms" +
+                    (isRestoredFromSnapshot ? " (snapshot)" : ""));
         }
     }
 
+    /**
+     * Select the last played book if it's available, otherwise the first one.
+     * While a scan is in progress the last played book may still be found so the first book is
+     * only selected provisionally and not stored as the current one.
+     */
     @MainThread
-    private void assignColoursToNewBooks() {
-        final int MAX_NEIGHBOUR_DISTANCE = 2;
+    private void updateCurrentBook(boolean isScanComplete) {
+        if (currentBook != null && !isCurrentBookProvisional)
+            return;
 
-        int count = audioBooks.size();
-        int lastIndex = count - 1;
-        for (int i = 0; i < count; ++i) {
-            AudioBook currentBook = audioBooks.get(i);
-            if (currentBook.getColourScheme() == null) {
-                int startNeighbourIndex = i - MAX_NEIGHBOUR_DISTANCE;
-                int endNeighbourIndex = i + MAX_NEIGHBOUR_DISTANCE;
-                List<ColourScheme> coloursToAvoid = getColoursInRange(
-                        Math.max(0, startNeighbourIndex),
-                        Math.min(lastIndex, endNeighbourIndex));
-                currentBook.setColourScheme(ColourScheme.getRandom(coloursToAvoid));
-                storage.writeAudioBookState(currentBook);
+        String id = storage.getCurrentAudioBook();
+        if (id != null && replacedBookIds.containsKey(id))
+            id = replacedBookIds.get(id);
+        if (id != null && getById(id) != null) {
+            setCurrentBook(id);
+        } else if (!library.isEmpty()) {
+            if (isScanComplete) {
+                // Make sure the selection is stored and announced.
+                currentBook = null;
+                setCurrentBook(library.getAudioBooks().get(0).getId());
+            } else if (currentBook == null) {
+                currentBook = library.getAudioBooks().get(0);
+                isCurrentBookProvisional = true;
             }
+        } else if (isScanComplete) {
+            isCurrentBookProvisional = false;
         }
     }
 
     @MainThread
-    private List<ColourScheme> getColoursInRange(int startIndex, int endIndex) {
-        List<ColourScheme> colours = new ArrayList<>();
-        for (int i = startIndex; i <= endIndex; ++i) {
-            ColourScheme colourScheme = audioBooks.get(i).getColourScheme();
-            if (colourScheme != null)
-                colours.add(colourScheme);
+    public void resetAllBookProgress() {
+        storage.beginBatch();
+        try {
+            for (AudioBook book : library.getAudioBooks()) {
+                book.resetPosition();
+            }
+        } finally {
+            storage.endBatch();
+        }
+    }
+
+    private static abstract class UpdateListener
+            implements SimpleFuture.Listener<LibraryReconciler.Update> {
+        @Override
+        public void onException(@NonNull Throwable t) {
+            Crashlytics.logException(t);
         }
-        return colours;
     }
 }
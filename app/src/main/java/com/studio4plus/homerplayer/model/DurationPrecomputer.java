@@ -0,0 +1,294 @@
+package com.studio4plus.homerplayer.model;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.crashlytics.android.Crashlytics;
+import com.studio4plus.homerplayer.battery.BatteryStatus;
+import com.studio4plus.homerplayer.battery.ChargeLevel;
+import com.studio4plus.homerplayer.concurrency.BackgroundExecutor;
+import com.studio4plus.homerplayer.concurrency.SimpleFuture;
+import com.studio4plus.homerplayer.events.BatteryStatusChangeEvent;
+import com.studio4plus.homerplayer.events.PlaybackStartedEvent;
+import com.studio4plus.homerplayer.events.PlaybackStoppedEvent;
+import com.studio4plus.homerplayer.filescanner.BookFiles;
+import com.studio4plus.homerplayer.player.HeaderDurationParser;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import de.greenrobot.event.EventBus;
+
+/**
+ * Computes the missing durations of the files of books in the background after a scan, so
+ * that they don't need to be computed when the book is started.
+ *
+ * It runs on a low priority thread, one book at a time, and stops while a book is being
+ * played. When charging it starts right away. On battery it only runs while the device is
+ * idle: it starts a while after the screen is turned off, stops when it's turned on, goes
+ * slower and doesn't run at all when the battery is almost empty.
+ *
+ * The battery status comes from BatteryStatusProvider, which only runs while the main
+ * activity is started; with the screen off the last known status is used.
+ */
+class DurationPrecomputer {
+
+    private static final long CHARGING_START_DELAY_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long BATTERY_START_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long BATTERY_BOOK_INTERVAL_MS = TimeUnit.SECONDS.toMillis(2);
+
+    private final @NonNull Storage storage;
+    private final @NonNull BackgroundExecutor executor;
+    private final @NonNull Handler handler;
+    private final @NonNull Runnable startNextBook = new Runnable() {
+        @Override
+        public void run() {
+            computeNextBook();
+        }
+    };
+
+    // Books with unknown durations, by id.
+    private final @NonNull Map<String, AudioBook> pendingBooks = new LinkedHashMap<>();
+    // Books that have been computed, their remaining files are in formats that need the player.
+    private final @NonNull Set<String> computedBookIds = new HashSet<>();
+    private @NonNull Library library = Library.EMPTY;
+    private @Nullable AudioBook bookInProgress;
+    private @Nullable BatteryStatus batteryStatus;
+    private boolean isInteractive;
+    private boolean isPlaybackActive;
+    // Checked by the background thread between files.
+    private volatile boolean isStopRequested;
+
+    @MainThread
+    DurationPrecomputer(
+            @NonNull Context context, @NonNull EventBus eventBus, @NonNull Storage storage) {
+        this.storage = storage;
+        this.handler = new Handler(Looper.getMainLooper());
+        HandlerThread thread =
+                new HandlerThread("DurationPrecomputer", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        this.executor = new BackgroundExecutor(handler, new Handler(thread.getLooper()));
+
+        this.isInteractive = isInteractive(context);
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                boolean wasRunnable = canRun();
+                isInteractive = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+                onConditionsChanged(wasRunnable);
+            }
+        }, screenFilter);
+        eventBus.registerSticky(this);
+    }
+
+    /**
+     * Compute the missing durations of the books in the library. Books of the previous
+     * library that are no longer in it are dropped.
+     */
+    @MainThread
+    void schedule(@NonNull Library library) {
+        this.library = library;
+        pendingBooks.clear();
+        for (AudioBook audioBook : library.getAudioBooks()) {
+            if (audioBook.getTotalDurationMs() == AudioBook.UNKNOWN_POSITION &&
+                    !computedBookIds.contains(audioBook.getId()))
+                pendingBooks.put(audioBook.getId(), audioBook);
+        }
+        if (bookInProgress != null)
+            pendingBooks.remove(bookInProgress.getId());
+        scheduleNextBook(getStartDelayMs());
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    @MainThread
+    public void onEvent(BatteryStatusChangeEvent event) {
+        boolean wasRunnable = canRun();
+        boolean wasCharging = isCharging();
+        batteryStatus = event.batteryStatus;
+        // The start delay depends on charging.
+        onConditionsChanged(wasRunnable && isCharging() == wasCharging);
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    @MainThread
+    public void onEvent(PlaybackStartedEvent event) {
+        isPlaybackActive = true;
+        onConditionsChanged(true);
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    @MainThread
+    public void onEvent(PlaybackStoppedEvent event) {
+        isPlaybackActive = false;
+        // Playback may have computed some of the durations.
+        schedule(library);
+    }
+
+    // Stops the book in progress if it may no longer run, schedules the next book if it may
+    // run now and couldn't before.
+    @MainThread
+    private void onConditionsChanged(boolean wasRunnable) {
+        if (!canRun()) {
+            handler.removeCallbacks(startNextBook);
+            isStopRequested = true;
+        } else if (!wasRunnable) {
+            scheduleNextBook(getStartDelayMs());
+        }
+    }
+
+    @MainThread
+    private void scheduleNextBook(long delayMs) {
+        handler.removeCallbacks(startNextBook);
+        if (!pendingBooks.isEmpty() && bookInProgress == null && canRun())
+            handler.postDelayed(startNextBook, delayMs);
+    }
+
+    @MainThread
+    private void computeNextBook() {
+        if (bookInProgress != null || !canRun())
+            return;
+        // Skip books that have been played in the meantime.
+        AudioBook nextBook = null;
+        Iterator<AudioBook> iterator = pendingBooks.values().iterator();
+        while (nextBook == null && iterator.hasNext()) {
+            AudioBook audioBook = iterator.next();
+            iterator.remove();
+            if (audioBook.getTotalDurationMs() == AudioBook.UNKNOWN_POSITION)
+                nextBook = audioBook;
+        }
+        if (nextBook == null)
+            return;
+        final AudioBook audioBook = nextBook;
+
+        bookInProgress = audioBook;
+        isStopRequested = false;
+        final String bookId = audioBook.getId();
+        final BookFiles files = audioBook.getFileSet().files;
+        final long[] knownDurations = audioBook.getFileDurations();
+        final boolean areStoredDurationsRead = audioBook.areStoredFileDurationsRead();
+        SimpleFuture<DurationsResult> future = executor.postTask(new Callable<DurationsResult>() {
+            @Override
+            public DurationsResult call() {
+                long[] storedDurations =
+                        areStoredDurationsRead ? null : storage.readStoredFileDurations(bookId);
+                return new DurationsResult(
+                        storedDurations,
+                        computeDurations(files, knownDurations, storedDurations));
+            }
+        });
+        future.addListener(new SimpleFuture.Listener<DurationsResult>() {
+            @Override
+            public void onResult(@NonNull DurationsResult result) {
+                onBookComputed(audioBook, result);
+            }
+
+            @Override
+            public void onException(@NonNull Throwable t) {
+                Crashlytics.logException(t);
+                bookInProgress = null;
+                scheduleNextBook(getBookIntervalMs());
+            }
+        });
+    }
+
+    @MainThread
+    private void onBookComputed(@NonNull AudioBook audioBook, @NonNull DurationsResult result) {
+        bookInProgress = null;
+        // Only update books that are still shown, others are not stored anyway.
+        if (library.getById(audioBook.getId()) == audioBook) {
+            if (!audioBook.areStoredFileDurationsRead())
+                audioBook.restoreFileDurations(result.storedDurations);
+            // Stored by the observer of the book.
+            audioBook.offerFileDurations(result.durations);
+            if (!isStopRequested)
+                computedBookIds.add(audioBook.getId());
+            else if (audioBook.getTotalDurationMs() == AudioBook.UNKNOWN_POSITION)
+                pendingBooks.put(audioBook.getId(), audioBook);
+        }
+        scheduleNextBook(getBookIntervalMs());
+    }
+
+    // Called on the background thread. Files whose duration can't be read from the header
+    // are left to the player, when the book is started.
+    @NonNull
+    private long[] computeDurations(@NonNull BookFiles files,
+                                    @NonNull long[] knownDurations,
+                                    @Nullable long[] storedDurations) {
+        final int count = files.size();
+        long[] durations = new long[count];
+        for (int i = 0; i < count && !isStopRequested; ++i) {
+            if (i < knownDurations.length && knownDurations[i] != 0)
+                continue;
+            if (storedDurations != null && i < storedDurations.length && storedDurations[i] != 0)
+                continue;
+            try {
+                durations[i] = HeaderDurationParser.readDuration(files.get(i));
+            } catch (IOException e) {
+                // E.g. the file has been removed, the book will be rescanned.
+                durations[i] = HeaderDurationParser.UNKNOWN_DURATION;
+            }
+        }
+        return durations;
+    }
+
+    private boolean canRun() {
+        if (isPlaybackActive)
+            return false;
+        if (isCharging())
+            return true;
+        return !isInteractive &&
+                (batteryStatus == null || batteryStatus.chargeLevel != ChargeLevel.CRITICAL);
+    }
+
+    private boolean isCharging() {
+        return batteryStatus != null && batteryStatus.isCharging;
+    }
+
+    private long getStartDelayMs() {
+        return isCharging() ? CHARGING_START_DELAY_MS : BATTERY_START_DELAY_MS;
+    }
+
+    private long getBookIntervalMs() {
+        return isCharging() ? 0 : BATTERY_BOOK_INTERVAL_MS;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean isInteractive(@NonNull Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null)
+            return true;
+        if (Build.VERSION.SDK_INT >= 20)
+            return powerManager.isInteractive();
+        else
+            return powerManager.isScreenOn();
+    }
+
+    private static class DurationsResult {
+        final @Nullable long[] storedDurations;
+        final @NonNull long[] durations;
+
+        DurationsResult(@Nullable long[] storedDurations, @NonNull long[] durations) {
+            this.storedDurations = storedDurations;
+            this.durations = durations;
+        }
+    }
+}
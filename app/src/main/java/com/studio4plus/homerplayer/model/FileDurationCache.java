@@ -0,0 +1,308 @@
+package com.studio4plus.homerplayer.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.crashlytics.android.Crashlytics;
+import com.studio4plus.homerplayer.filescanner.BookFiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Durations of audio files by their fingerprint: the path relative to the book directory, the
+ * length and the modification time of the file.
+ *
+ * Unlike the durations stored by book id they survive changes to a book: adding a file
+ * changes the id of the book but the durations of all its other files are found here, so only
+ * the new file needs to be probed.
+ *
+ * Entries are appended to a file as records with a checksum. When loaded, the file is
+ * rewritten if it has many outdated records or a damaged one and the oldest entries above
+ * MAX_ENTRIES are dropped.
+ */
+class FileDurationCache {
+
+    private static final String FILE_NAME = "durations.cache";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x48504443;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    // About 1MB, the durations of a few hundred books.
+    private static final int MAX_ENTRIES = 20000;
+
+    private static class Fingerprint {
+        final @NonNull String relativePath;
+        final long length;
+        final long lastModified;
+
+        Fingerprint(@NonNull String relativePath, long length, long lastModified) {
+            this.relativePath = relativePath;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Fingerprint that = (Fingerprint) o;
+            return length == that.length && lastModified == that.lastModified &&
+                    relativePath.equals(that.relativePath);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = relativePath.hashCode();
+            result = 31 * result + (int) (length ^ (length >>> 32));
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            return result;
+        }
+    }
+
+    private final @NonNull File file;
+    // Loaded when first needed. Oldest first.
+    private @Nullable LinkedHashMap<Fingerprint, Long> durations;
+    // The relative paths of the entries, to only read the attributes of files that may be in
+    // the cache. Not updated when entries are dropped.
+    private final @NonNull Set<String> relativePaths = new HashSet<>();
+    // The durations of each book that have been added in this run, to not read the attributes
+    // of its files again each time its durations are written.
+    private final @NonNull Map<String, long[]> addedDurations = new HashMap<>();
+
+    FileDurationCache(@NonNull File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Returns the durations of the files that are in the cache, 0 for the others. Null if
+     * none are.
+     */
+    @Nullable
+    synchronized long[] get(@NonNull BookFiles files) {
+        Map<Fingerprint, Long> cachedDurations = getDurations();
+        long[] result = null;
+        final int count = files.size();
+        for (int i = 0; i < count; ++i) {
+            String relativePath = files.getRelativePath(i);
+            if (!relativePaths.contains(relativePath))
+                continue;
+            Fingerprint fingerprint = getFingerprint(files.get(i), relativePath);
+            Long duration = fingerprint != null ? cachedDurations.get(fingerprint) : null;
+            if (duration != null) {
+                if (result == null)
+                    result = new long[count];
+                result[i] = duration;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add the known durations of the files of a book, AudioBook.NO_DURATION included.
+     */
+    synchronized void put(
+            @NonNull String bookId, @NonNull BookFiles files, @NonNull long[] fileDurations) {
+        Map<Fingerprint, Long> cachedDurations = getDurations();
+        long[] previousDurations = addedDurations.get(bookId);
+        Map<Fingerprint, Long> newDurations = new LinkedHashMap<>();
+        final int count = Math.min(fileDurations.length, files.size());
+        for (int i = 0; i < count; ++i) {
+            long duration = fileDurations[i];
+            if (duration == 0 || (previousDurations != null &&
+                    i < previousDurations.length && previousDurations[i] == duration))
+                continue;
+            Fingerprint fingerprint = getFingerprint(files.get(i), files.getRelativePath(i));
+            if (fingerprint != null) {
+                Long previousDuration = cachedDurations.get(fingerprint);
+                if (previousDuration == null || previousDuration != duration)
+                    newDurations.put(fingerprint, duration);
+            }
+        }
+        addedDurations.put(bookId, fileDurations.clone());
+        if (newDurations.isEmpty())
+            return;
+
+        for (Map.Entry<Fingerprint, Long> entry : newDurations.entrySet())
+            putEntry(cachedDurations, entry.getKey(), entry.getValue());
+        dropOldEntries(cachedDurations);
+        try {
+            append(newDurations);
+        } catch (IOException e) {
+            Crashlytics.logException(e);
+        }
+    }
+
+    @NonNull
+    private Map<Fingerprint, Long> getDurations() {
+        if (durations == null) {
+            durations = new LinkedHashMap<>();
+            load(durations);
+        }
+        return durations;
+    }
+
+    private void load(@NonNull LinkedHashMap<Fingerprint, Long> cachedDurations) {
+        if (!file.exists())
+            return;
+
+        int recordCount = 0;
+        boolean isDamaged = false;
+        try {
+            byte[] data = readFile(file);
+            ByteArrayInputStream inputBytes = new ByteArrayInputStream(data);
+            DataInputStream input = new DataInputStream(inputBytes);
+            CRC32 checksum = new CRC32();
+            try {
+                if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION)
+                    throw new IOException("Unsupported file duration cache format");
+                int recordStart = HEADER_LENGTH;
+                while (inputBytes.available() > 0) {
+                    Fingerprint fingerprint =
+                            new Fingerprint(input.readUTF(), input.readLong(), input.readLong());
+                    long duration = input.readLong();
+                    int recordEnd = data.length - inputBytes.available();
+                    checksum.reset();
+                    checksum.update(data, recordStart, recordEnd - recordStart);
+                    if (input.readInt() != (int) checksum.getValue()) {
+                        isDamaged = true;
+                        break;
+                    }
+                    putEntry(cachedDurations, fingerprint, duration);
+                    ++recordCount;
+                    recordStart = recordEnd + 4;
+                }
+            } catch (EOFException e) {
+                // A torn record at the end.
+                isDamaged = true;
+            }
+        } catch (IOException e) {
+            Crashlytics.logException(e);
+            isDamaged = true;
+        }
+
+        dropOldEntries(cachedDurations);
+        if (isDamaged || recordCount > cachedDurations.size() * 2) {
+            try {
+                rewrite(cachedDurations);
+            } catch (IOException e) {
+                Crashlytics.logException(e);
+                // Start over with the next entries.
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private void putEntry(@NonNull Map<Fingerprint, Long> cachedDurations,
+                          @NonNull Fingerprint fingerprint,
+                          long duration) {
+        // Move the entry to the end, as the newest one.
+        cachedDurations.remove(fingerprint);
+        cachedDurations.put(fingerprint, duration);
+        relativePaths.add(fingerprint.relativePath);
+    }
+
+    private static void dropOldEntries(@NonNull Map<Fingerprint, Long> cachedDurations) {
+        Iterator<Fingerprint> iterator = cachedDurations.keySet().iterator();
+        for (int i = cachedDurations.size(); i > MAX_ENTRIES; --i) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private void append(@NonNull Map<Fingerprint, Long> newDurations) throws IOException {
+        boolean exists = file.exists();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        if (!exists)
+            writeHeader(records);
+        writeRecords(records, newDurations);
+        FileOutputStream output = new FileOutputStream(file, exists);
+        try {
+            // A single write so that records are either complete or at the end of the file.
+            records.writeTo(output);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void rewrite(@NonNull Map<Fingerprint, Long> cachedDurations) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        writeHeader(data);
+        writeRecords(data, cachedDurations);
+        File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+        FileOutputStream output = new FileOutputStream(temporaryFile);
+        try {
+            data.writeTo(output);
+        } finally {
+            output.close();
+        }
+        if (!temporaryFile.renameTo(file))
+            throw new IOException("Unable to replace the file duration cache");
+    }
+
+    private static void writeHeader(@NonNull ByteArrayOutputStream data) throws IOException {
+        DataOutputStream output = new DataOutputStream(data);
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+    }
+
+    private static void writeRecords(@NonNull ByteArrayOutputStream data,
+                                     @NonNull Map<Fingerprint, Long> entries)
+            throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+        DataOutputStream recordOutput = new DataOutputStream(record);
+        CRC32 checksum = new CRC32();
+        for (Map.Entry<Fingerprint, Long> entry : entries.entrySet()) {
+            Fingerprint fingerprint = entry.getKey();
+            record.reset();
+            recordOutput.writeUTF(fingerprint.relativePath);
+            recordOutput.writeLong(fingerprint.length);
+            recordOutput.writeLong(fingerprint.lastModified);
+            recordOutput.writeLong(entry.getValue());
+            checksum.reset();
+            checksum.update(record.toByteArray());
+            recordOutput.writeInt((int) checksum.getValue());
+            record.writeTo(data);
+        }
+    }
+
+    // Returns null if the file doesn't exist.
+    @Nullable
+    private static Fingerprint getFingerprint(@NonNull File file, @NonNull String relativePath) {
+        long length = file.length();
+        if (length == 0)
+            return null;
+        return new Fingerprint(relativePath, length, file.lastModified());
+    }
+
+    @NonNull
+    private static byte[] readFile(@NonNull File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) > 0)
+                output.write(buffer, 0, count);
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.studio4plus.homerplayer.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.crashlytics.android.Crashlytics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the durations of the files of audio books, the rarely changing ("cold") part of
+ * their state. Each book has its own file so that updating one book doesn't rewrite others.
+ *
+ * The format is: version, count and the differences between subsequent durations (the first
+ * one relative to 0), all as variable length integers with the differences zig-zag encoded,
+ * followed by a CRC32 of all that. Files of a book tend to have similar durations so most
+ * differences take two or three bytes.
+ *
+ * The durations can always be computed again so a damaged file is simply ignored.
+ */
+class FileDurationsStore {
+
+    private static final String DIRECTORY_NAME = "durations";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final int FORMAT_VERSION = 1;
+
+    private final @NonNull File directory;
+
+    FileDurationsStore(@NonNull File parentDirectory) {
+        this.directory = new File(parentDirectory, DIRECTORY_NAME);
+    }
+
+    boolean contains(@NonNull String bookId) {
+        return getFile(bookId).exists();
+    }
+
+    @Nullable
+    long[] read(@NonNull String bookId) {
+        File file = getFile(bookId);
+        if (!file.exists())
+            return null;
+        try {
+            return decode(readFile(file));
+        } catch (IOException e) {
+            Crashlytics.logException(e);
+            return null;
+        }
+    }
+
+    void write(@NonNull String bookId, @NonNull long[] durations) {
+        File file = getFile(bookId);
+        File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Unable to create " + directory.getPath());
+            FileOutputStream output = new FileOutputStream(temporaryFile);
+            try {
+                output.write(encode(durations));
+            } finally {
+                output.close();
+            }
+            if (!temporaryFile.renameTo(file))
+                throw new IOException("Unable to replace " + file.getPath());
+        } catch (IOException e) {
+            Crashlytics.logException(e);
+        }
+    }
+
+    @NonNull
+    static byte[] encode(@NonNull long[] durations) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(8 + durations.length * 3);
+        writeVarLong(output, FORMAT_VERSION);
+        writeVarLong(output, durations.length);
+        long previous = 0;
+        for (long duration : durations) {
+            long difference = duration - previous;
+            writeVarLong(output, (difference << 1) ^ (difference >> 63));
+            previous = duration;
+        }
+        byte[] data = output.toByteArray();
+        int checksum = computeChecksum(data, data.length);
+        output.write(checksum >>> 24);
+        output.write(checksum >>> 16);
+        output.write(checksum >>> 8);
+        output.write(checksum);
+        return output.toByteArray();
+    }
+
+    @NonNull
+    static long[] decode(@NonNull byte[] data) throws IOException {
+        int length = data.length - 4;
+        if (length < 2)
+            throw new IOException("File durations too short");
+        int checksum = ((data[length] & 0xff) << 24) | ((data[length + 1] & 0xff) << 16) |
+                ((data[length + 2] & 0xff) << 8) | (data[length + 3] & 0xff);
+        if (checksum != computeChecksum(data, length))
+            throw new IOException("File durations checksum mismatch");
+
+        int[] offset = {0};
+        if (readVarLong(data, length, offset) != FORMAT_VERSION)
+            throw new IOException("Unsupported file durations format");
+        long count = readVarLong(data, length, offset);
+        // Each duration takes at least one byte.
+        if (count > length - offset[0])
+            throw new IOException("Invalid file durations count");
+        long[] durations = new long[(int) count];
+        long previous = 0;
+        for (int i = 0; i < durations.length; ++i) {
+            long encoded = readVarLong(data, length, offset);
+            previous += (encoded >>> 1) ^ -(encoded & 1);
+            durations[i] = previous;
+        }
+        if (offset[0] != length)
+            throw new IOException("Invalid file durations count");
+        return durations;
+    }
+
+    @NonNull
+    private File getFile(@NonNull String bookId) {
+        // Ids are Base64 and may contain '/'.
+        return new File(directory, bookId.replace('/', '_').replace('+', '-'));
+    }
+
+    private static void writeVarLong(@NonNull ByteArrayOutputStream output, long value) {
+        while ((value & ~0x7fL) != 0) {
+            output.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static long readVarLong(@NonNull byte[] data, int length, @NonNull int[] offset)
+            throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (offset[0] >= length)
+                throw new IOException("File durations truncated");
+            byte b = data[offset[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Invalid variable length integer");
+    }
+
+    private static int computeChecksum(@NonNull byte[] data, int length) {
+        CRC32 checksum = new CRC32();
+        checksum.update(data, 0, length);
+        return (int) checksum.getValue();
+    }
+
+    @NonNull
+    private static byte[] readFile(@NonNull File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = input.read(buffer)) > 0)
+                output.write(buffer, 0, count);
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
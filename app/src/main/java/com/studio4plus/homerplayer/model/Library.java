@@ -0,0 +1,73 @@
+package com.studio4plus.homerplayer.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable list of the audio books, sorted by title.
+ *
+ * Each change to the list produces a new Library with a higher version, so it can be kept and
+ * read while the books are being updated. The books themselves are mutable (e.g. their
+ * positions) and may only be used on the main thread.
+ */
+public class Library {
+
+    static final Library EMPTY = new Library(
+            0, Collections.<AudioBook>emptyList(), LibraryContentType.EMPTY, TitleIndex.EMPTY);
+
+    public final int version;
+    public final @NonNull LibraryContentType contentType;
+    private final @NonNull List<AudioBook> audioBooks;
+    private final @NonNull Map<String, Integer> indexes;
+    private final @NonNull TitleIndex titleIndex;
+
+    Library(int version,
+            @NonNull List<AudioBook> sortedAudioBooks,
+            @NonNull LibraryContentType contentType,
+            @NonNull TitleIndex titleIndex) {
+        this.version = version;
+        this.contentType = contentType;
+        this.titleIndex = titleIndex;
+        this.audioBooks = Collections.unmodifiableList(sortedAudioBooks);
+        this.indexes = new HashMap<>(sortedAudioBooks.size() * 2);
+        final int count = sortedAudioBooks.size();
+        for (int i = 0; i < count; ++i)
+            indexes.put(sortedAudioBooks.get(i).getId(), i);
+    }
+
+    @NonNull
+    public List<AudioBook> getAudioBooks() {
+        return audioBooks;
+    }
+
+    public boolean isEmpty() {
+        return audioBooks.isEmpty();
+    }
+
+    @Nullable
+    public AudioBook getById(@NonNull String id) {
+        Integer index = indexes.get(id);
+        return index != null ? audioBooks.get(index) : null;
+    }
+
+    /**
+     * The titles of the books, for searching.
+     */
+    @NonNull
+    public TitleIndex getTitleIndex() {
+        return titleIndex;
+    }
+
+    /**
+     * Returns the index of the book in the list, -1 if it's not in the library.
+     */
+    public int indexOf(@NonNull String id) {
+        Integer index = indexes.get(id);
+        return index != null ? index : -1;
+    }
+}
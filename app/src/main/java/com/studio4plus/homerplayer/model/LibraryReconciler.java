@@ -0,0 +1,261 @@
+package com.studio4plus.homerplayer.model;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import com.studio4plus.homerplayer.concurrency.BackgroundExecutor;
+import com.studio4plus.homerplayer.concurrency.SimpleFuture;
+import com.studio4plus.homerplayer.filescanner.FileSet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Applies scan results to the library on a background thread: creates the new books with
+ * their stored state, drops the missing ones, sorts the list and assigns colours.
+ *
+ * Each change produces a new Library, the results are delivered on the main thread in the
+ * order of the calls.
+ */
+class LibraryReconciler {
+
+    static class Update {
+        final @NonNull Library library;
+        // Whether books have been added or removed.
+        final boolean isChanged;
+        // Books that have been assigned a colour, have durations from the scan or take over
+        // the state of a previous book, their state needs to be stored.
+        final @NonNull List<AudioBook> booksToStore;
+        // Ids of books replaced by new books, mapped to the ids of the new books. The new books
+        // take over the state of the previous ones on the main thread, when published.
+        final @NonNull Map<String, String> replacedBookIds;
+
+        Update(@NonNull Library library,
+               boolean isChanged,
+               @NonNull List<AudioBook> booksToStore,
+               @NonNull Map<String, String> replacedBookIds) {
+            this.library = library;
+            this.isChanged = isChanged;
+            this.booksToStore = booksToStore;
+            this.replacedBookIds = replacedBookIds;
+        }
+    }
+
+    private static final int MAX_NEIGHBOUR_DISTANCE = 2;
+
+    private final @NonNull Storage storage;
+    private final @NonNull BackgroundExecutor executor;
+
+    // Accessed only on the reconciler thread.
+    private @NonNull Library library = Library.EMPTY;
+    // The snapshot is only stored after a full scan, before that the library may be incomplete.
+    private boolean isFullScanDone;
+    private boolean isSnapshotOutdated;
+
+    LibraryReconciler(@NonNull Storage storage) {
+        this.storage = storage;
+        HandlerThread thread = new HandlerThread("LibraryReconciler");
+        thread.start();
+        this.executor = new BackgroundExecutor(
+                new Handler(Looper.getMainLooper()), new Handler(thread.getLooper()));
+    }
+
+    /**
+     * Add the books stored after the last scan.
+     */
+    @NonNull
+    SimpleFuture<Update> restoreSnapshot() {
+        return executor.postTask(new Callable<Update>() {
+            @Override
+            public Update call() {
+                Update update = applyChanges(
+                        library.getAudioBooks(), storage.readLibrarySnapshot(), false);
+                isSnapshotOutdated = false;
+                return update;
+            }
+        });
+    }
+
+    /**
+     * Add books found by a scan that is still in progress.
+     */
+    @NonNull
+    SimpleFuture<Update> addBooks(@NonNull final List<FileSet> fileSets) {
+        return executor.postTask(new Callable<Update>() {
+            @Override
+            public Update call() {
+                return applyChanges(library.getAudioBooks(), fileSets, false);
+            }
+        });
+    }
+
+    /**
+     * Replace all books with the result of a full scan.
+     */
+    @NonNull
+    SimpleFuture<Update> replaceBooks(@NonNull final List<FileSet> fileSets) {
+        return executor.postTask(new Callable<Update>() {
+            @Override
+            public Update call() {
+                Set<String> scannedIds = new HashSet<>(fileSets.size() * 2);
+                for (FileSet fileSet : fileSets)
+                    scannedIds.add(fileSet.id);
+                List<AudioBook> keptBooks = new ArrayList<>(library.getAudioBooks().size());
+                for (AudioBook audioBook : library.getAudioBooks()) {
+                    if (scannedIds.contains(audioBook.getId()))
+                        keptBooks.add(audioBook);
+                }
+                isFullScanDone = true;
+                return applyChanges(keptBooks, fileSets, true);
+            }
+        });
+    }
+
+    /**
+     * Replace the book in bookDirectory with the result of rescanning that directory.
+     * The result contains at most one FileSet.
+     */
+    @NonNull
+    SimpleFuture<Update> replaceBookDirectory(
+            @NonNull final File bookDirectory, @NonNull final List<FileSet> fileSets) {
+        return executor.postTask(new Callable<Update>() {
+            @Override
+            public Update call() {
+                List<AudioBook> keptBooks = new ArrayList<>(library.getAudioBooks());
+                for (AudioBook audioBook : keptBooks) {
+                    if (audioBook.getDirectory().equals(bookDirectory)) {
+                        FileSet fileSet = fileSets.isEmpty() ? null : fileSets.get(0);
+                        if (fileSet == null || !audioBook.getId().equals(fileSet.id))
+                            keptBooks.remove(audioBook);
+                        break;
+                    }
+                }
+                return applyChanges(keptBooks, fileSets, true);
+            }
+        });
+    }
+
+    // Called on the reconciler thread.
+    @NonNull
+    private Update applyChanges(@NonNull List<AudioBook> keptBooks,
+                                @NonNull List<FileSet> fileSets,
+                                boolean storeSnapshot) {
+        Set<String> ids = new HashSet<>((keptBooks.size() + fileSets.size()) * 2);
+        for (AudioBook audioBook : keptBooks)
+            ids.add(audioBook.getId());
+        List<FileSet> newFileSets = new ArrayList<>();
+        for (FileSet fileSet : fileSets) {
+            if (ids.add(fileSet.id))
+                newFileSets.add(fileSet);
+        }
+
+        boolean isChanged =
+                !newFileSets.isEmpty() || keptBooks.size() != library.getAudioBooks().size();
+        Set<AudioBook> booksToStore = new LinkedHashSet<>();
+        Map<String, String> replacedBookIds = new HashMap<>();
+        if (isChanged) {
+            List<AudioBook> newBooks = storage.readAudioBooks(newFileSets);
+            for (AudioBook audioBook : newBooks) {
+                // Not observed yet, the durations are stored by the main thread.
+                audioBook.offerScannedFileDurations();
+                audioBook.setUpdateObserver(storage);
+                if (audioBook.getFileSet().fileDurations != null)
+                    booksToStore.add(audioBook);
+            }
+            restoreFromReplacedBooks(newBooks, booksToStore, replacedBookIds);
+
+            List<AudioBook> audioBooks = new ArrayList<>(keptBooks.size() + newBooks.size());
+            audioBooks.addAll(keptBooks);
+            audioBooks.addAll(newBooks);
+            TitleIndex titleIndex = TitleIndex.sortByTitle(audioBooks, library.getTitleIndex());
+            assignColoursToNewBooks(audioBooks, booksToStore);
+            library = new Library(
+                    library.version + 1, audioBooks, getContentType(audioBooks), titleIndex);
+            isSnapshotOutdated = true;
+        }
+
+        if (storeSnapshot && isFullScanDone && isSnapshotOutdated) {
+            List<FileSet> snapshot = new ArrayList<>(library.getAudioBooks().size());
+            for (AudioBook audioBook : library.getAudioBooks())
+                snapshot.add(audioBook.getFileSet());
+            storage.writeLibrarySnapshot(snapshot);
+            isSnapshotOutdated = false;
+        }
+        return new Update(library, isChanged, new ArrayList<>(booksToStore), replacedBookIds);
+    }
+
+    // A book gets a new id when its files change, e.g. a file is added. If the previous book
+    // in the same directory is in the library the new one replaces it, unless there is state
+    // stored for the new id already. The state of the previous book may still change (e.g. it
+    // is being played) so it is taken over later, on the main thread.
+    private void restoreFromReplacedBooks(@NonNull List<AudioBook> newBooks,
+                                          @NonNull Set<AudioBook> booksToStore,
+                                          @NonNull Map<String, String> replacedBookIds) {
+        Map<File, AudioBook> booksByDirectory = new HashMap<>(library.getAudioBooks().size() * 2);
+        for (AudioBook audioBook : library.getAudioBooks())
+            booksByDirectory.put(audioBook.getDirectory(), audioBook);
+
+        for (AudioBook audioBook : newBooks) {
+            AudioBook previousBook = booksByDirectory.get(audioBook.getDirectory());
+            if (previousBook != null &&
+                    !previousBook.getId().equals(audioBook.getId()) &&
+                    !storage.hasSavedState(audioBook.getId()) &&
+                    audioBook.isReplacementOf(previousBook)) {
+                booksToStore.add(audioBook);
+                replacedBookIds.put(previousBook.getId(), audioBook.getId());
+            }
+        }
+    }
+
+    private static void assignColoursToNewBooks(
+            @NonNull List<AudioBook> audioBooks, @NonNull Set<AudioBook> booksToStore) {
+        int count = audioBooks.size();
+        int lastIndex = count - 1;
+        for (int i = 0; i < count; ++i) {
+            AudioBook currentBook = audioBooks.get(i);
+            if (currentBook.getColourScheme() == null) {
+                int startNeighbourIndex = i - MAX_NEIGHBOUR_DISTANCE;
+                int endNeighbourIndex = i + MAX_NEIGHBOUR_DISTANCE;
+                List<ColourScheme> coloursToAvoid = getColoursInRange(
+                        audioBooks,
+                        Math.max(0, startNeighbourIndex),
+                        Math.min(lastIndex, endNeighbourIndex));
+                currentBook.setColourScheme(ColourScheme.getRandom(coloursToAvoid));
+                booksToStore.add(currentBook);
+            }
+        }
+    }
+
+    @NonNull
+    private static List<ColourScheme> getColoursInRange(
+            @NonNull List<AudioBook> audioBooks, int startIndex, int endIndex) {
+        List<ColourScheme> colours = new ArrayList<>();
+        for (int i = startIndex; i <= endIndex; ++i) {
+            ColourScheme colourScheme = audioBooks.get(i).getColourScheme();
+            if (colourScheme != null)
+                colours.add(colourScheme);
+        }
+        return colours;
+    }
+
+    @NonNull
+    private static LibraryContentType getContentType(@NonNull List<AudioBook> audioBooks) {
+        LibraryContentType contentType = LibraryContentType.EMPTY;
+        for (AudioBook audioBook : audioBooks) {
+            LibraryContentType newContentType = audioBook.isDemoSample()
+                    ? LibraryContentType.SAMPLES_ONLY : LibraryContentType.USER_CONTENT;
+            if (newContentType.supersedes(contentType))
+                contentType = newContentType;
+        }
+        return contentType;
+    }
+}
@@ -0,0 +1,116 @@
+package com.studio4plus.homerplayer.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.crashlytics.android.Crashlytics;
+import com.studio4plus.homerplayer.filescanner.BookFiles;
+import com.studio4plus.homerplayer.filescanner.FileSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The list of books found by the last scan, in the order they are shown. It is read at start
+ * so that the books can be shown before the scan completes.
+ *
+ * For each book it stores the id, the directory (which gives the title) and the paths of the
+ * files relative to the directory.
+ */
+class LibrarySnapshot {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final @NonNull File snapshotFile;
+
+    LibrarySnapshot(@NonNull File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Returns the books, skipping those whose directories are not available (e.g. on an SD
+     * card that isn't mounted yet). Empty if there is no snapshot.
+     */
+    @NonNull
+    List<FileSet> read() {
+        if (!snapshotFile.exists())
+            return Collections.emptyList();
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(snapshotFile)));
+            if (input.readInt() != FORMAT_VERSION)
+                return Collections.emptyList();
+
+            int count = input.readInt();
+            List<FileSet> fileSets = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                String id = input.readUTF();
+                File directory = new File(input.readUTF());
+                boolean isDemoSample = input.readBoolean();
+                BookFiles.Builder files = new BookFiles.Builder(directory);
+                int fileCount = input.readInt();
+                for (int j = 0; j < fileCount; ++j)
+                    files.add(input.readUTF());
+                if (directory.isDirectory())
+                    fileSets.add(new FileSet(id, directory, files.build(), isDemoSample));
+            }
+            return fileSets;
+        } catch (IOException e) {
+            // The scan will find the books anyway.
+            Crashlytics.logException(e);
+            return Collections.emptyList();
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    void write(@NonNull List<FileSet> fileSets) {
+        File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(fileSets.size());
+            for (FileSet fileSet : fileSets) {
+                output.writeUTF(fileSet.id);
+                output.writeUTF(fileSet.directory.getPath());
+                output.writeBoolean(fileSet.isDemoSample);
+                output.writeInt(fileSet.files.size());
+                for (int i = 0; i < fileSet.files.size(); ++i)
+                    output.writeUTF(fileSet.files.getRelativePath(i));
+            }
+            output.close();
+            output = null;
+            if (!tmpFile.renameTo(snapshotFile))
+                tmpFile.delete();
+        } catch (IOException e) {
+            Crashlytics.logException(e);
+            closeQuietly(output);
+            tmpFile.delete();
+        }
+    }
+
+    private static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+}
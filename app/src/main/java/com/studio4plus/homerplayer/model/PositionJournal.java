@@ -0,0 +1,327 @@
+package com.studio4plus.homerplayer.model;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.crashlytics.android.Crashlytics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the frequently changing ("hot") state of audio books: the playback position, the
+ * time it was last played and the colour. It's all that's needed to show the list of books.
+ *
+ * Each update is appended to a journal file as a small record with a checksum, so
+ * an update doesn't rewrite the state of all the books. When the journal grows large it is
+ * compacted: the positions of all books are written to a snapshot file (a temporary file that
+ * replaces the previous snapshot) and the journal is truncated.
+ *
+ * Loading reads the snapshot and replays the journal on top of it. A record torn by a crash
+ * or power loss fails the checksum and is dropped together with anything after it.
+ */
+class PositionJournal {
+
+    static class Entry {
+        final int fileIndex;
+        final long seekPosition;
+        // 0 if the book hasn't been played.
+        final long lastPlayedTimeMs;
+        final @Nullable ColourScheme colourScheme;
+
+        Entry(int fileIndex,
+              long seekPosition,
+              long lastPlayedTimeMs,
+              @Nullable ColourScheme colourScheme) {
+            this.fileIndex = fileIndex;
+            this.seekPosition = seekPosition;
+            this.lastPlayedTimeMs = lastPlayedTimeMs;
+            this.colourScheme = colourScheme;
+        }
+    }
+
+    private static final String SNAPSHOT_FILE_NAME = "positions";
+    private static final String JOURNAL_FILE_NAME = "positions.journal";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final int SNAPSHOT_MAGIC = 0x48505053;
+    private static final int JOURNAL_MAGIC = 0x4850504a;
+    // Version 1 entries have only the position.
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_LENGTH = 8;
+    private static final byte RECORD_POSITION = 1;
+    // About 1500 records, a few hours of playback.
+    private static final long COMPACTION_THRESHOLD_BYTES = 64 * 1024;
+
+    private final @NonNull File snapshotFile;
+    private final @NonNull File journalFile;
+    private final @NonNull Map<String, Entry> positions = new HashMap<>();
+    private final @NonNull ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(64);
+    private final @NonNull DataOutputStream recordOutput = new DataOutputStream(recordBuffer);
+    private final @NonNull CRC32 checksum = new CRC32();
+
+    private @Nullable FileOutputStream journalOutput;
+    private long journalLength;
+
+    PositionJournal(@NonNull File directory) {
+        this.snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+        this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Load the positions. Returns false if there are no files yet, e.g. on the first start.
+     */
+    synchronized boolean load() {
+        boolean exists = snapshotFile.exists() || journalFile.exists();
+        positions.clear();
+        try {
+            if (snapshotFile.exists())
+                readSnapshot();
+        } catch (IOException e) {
+            // The snapshot is replaced atomically so it's unlikely to happen. Recover as much as
+            // possible from the journal.
+            Crashlytics.logException(e);
+            positions.clear();
+        }
+        try {
+            replayJournal();
+            if (journalLength > COMPACTION_THRESHOLD_BYTES)
+                compact();
+        } catch (IOException e) {
+            Crashlytics.logException(e);
+            closeJournal();
+        }
+        return exists;
+    }
+
+    @Nullable
+    synchronized Entry get(@NonNull String bookId) {
+        return positions.get(bookId);
+    }
+
+    synchronized boolean contains(@NonNull String bookId) {
+        return positions.containsKey(bookId);
+    }
+
+    synchronized void put(@NonNull String bookId, @NonNull Entry entry) {
+        positions.put(bookId, entry);
+        try {
+            appendRecord(bookId, entry);
+            if (journalLength > COMPACTION_THRESHOLD_BYTES)
+                compact();
+        } catch (IOException e) {
+            Crashlytics.logException(e);
+            closeJournal();
+        }
+    }
+
+    /**
+     * Add entries in bulk, e.g. when migrating from another storage, and compact.
+     */
+    synchronized void putAll(@NonNull Map<String, Entry> entries) {
+        positions.putAll(entries);
+        try {
+            compact();
+        } catch (IOException e) {
+            Crashlytics.logException(e);
+            closeJournal();
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        byte[] data = readFile(snapshotFile);
+        if (data.length < HEADER_LENGTH + 8)
+            throw new IOException("Position snapshot too short");
+
+        checksum.reset();
+        checksum.update(data, 0, data.length - 4);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        int version = input.readInt() == SNAPSHOT_MAGIC ? input.readInt() : -1;
+        if (!isSupportedVersion(version))
+            throw new IOException("Unsupported position snapshot format");
+        int count = input.readInt();
+        for (int i = 0; i < count; ++i) {
+            String bookId = input.readUTF();
+            positions.put(bookId, readEntry(input, version));
+        }
+        if (input.readInt() != (int) checksum.getValue())
+            throw new IOException("Position snapshot checksum mismatch");
+    }
+
+    private void replayJournal() throws IOException {
+        byte[] data = journalFile.exists() ? readFile(journalFile) : new byte[0];
+        ByteArrayInputStream inputBytes = new ByteArrayInputStream(data);
+        DataInputStream input = new DataInputStream(inputBytes);
+        int validLength = 0;
+        int version = -1;
+        try {
+            if (input.readInt() == JOURNAL_MAGIC)
+                version = input.readInt();
+            if (isSupportedVersion(version))
+                validLength = HEADER_LENGTH;
+            while (validLength > 0) {
+                byte type = input.readByte();
+                if (type != RECORD_POSITION)
+                    break;
+                String bookId = input.readUTF();
+                Entry entry = readEntry(input, version);
+                int recordEnd = data.length - inputBytes.available();
+                checksum.reset();
+                checksum.update(data, validLength, recordEnd - validLength);
+                if (input.readInt() != (int) checksum.getValue())
+                    break;
+
+                positions.put(bookId, entry);
+                validLength = recordEnd + 4;
+            }
+        } catch (EOFException e) {
+            // A torn record at the end.
+        }
+
+        if (validLength == 0) {
+            resetJournal();
+        } else if (version != FORMAT_VERSION) {
+            compact();
+        } else {
+            if (validLength < data.length) {
+                RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+                try {
+                    file.setLength(validLength);
+                } finally {
+                    file.close();
+                }
+            }
+            journalOutput = new FileOutputStream(journalFile, true);
+            journalLength = validLength;
+        }
+    }
+
+    private void appendRecord(@NonNull String bookId, @NonNull Entry entry) throws IOException {
+        // After an error the journal may not contain all positions, start over.
+        if (journalOutput == null)
+            compact();
+
+        recordBuffer.reset();
+        recordOutput.writeByte(RECORD_POSITION);
+        recordOutput.writeUTF(bookId);
+        writeEntry(recordOutput, entry);
+        byte[] record = recordBuffer.toByteArray();
+        checksum.reset();
+        checksum.update(record);
+        recordOutput.writeInt((int) checksum.getValue());
+        // A single write so that a record is either complete or at the end of the file.
+        recordBuffer.writeTo(journalOutput);
+        journalLength += recordBuffer.size();
+    }
+
+    private void compact() throws IOException {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(snapshot);
+        output.writeInt(SNAPSHOT_MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(positions.size());
+        for (Map.Entry<String, Entry> position : positions.entrySet()) {
+            output.writeUTF(position.getKey());
+            writeEntry(output, position.getValue());
+        }
+        byte[] data = snapshot.toByteArray();
+        checksum.reset();
+        checksum.update(data);
+        output.writeInt((int) checksum.getValue());
+
+        File temporaryFile = new File(snapshotFile.getPath() + TEMPORARY_FILE_SUFFIX);
+        FileOutputStream fileOutput = new FileOutputStream(temporaryFile);
+        try {
+            snapshot.writeTo(fileOutput);
+            // The journal is truncated only when the snapshot is safely on disk.
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+        }
+        if (!temporaryFile.renameTo(snapshotFile))
+            throw new IOException("Unable to replace the position snapshot");
+
+        // Replaying the old journal over the new snapshot is harmless if this doesn't complete.
+        resetJournal();
+    }
+
+    // Truncates the journal to just the header.
+    private void resetJournal() throws IOException {
+        closeJournal();
+        FileOutputStream output = new FileOutputStream(journalFile);
+        DataOutputStream header = new DataOutputStream(output);
+        header.writeInt(JOURNAL_MAGIC);
+        header.writeInt(FORMAT_VERSION);
+        header.flush();
+        journalOutput = output;
+        journalLength = HEADER_LENGTH;
+    }
+
+    private void closeJournal() {
+        if (journalOutput != null) {
+            try {
+                journalOutput.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+            journalOutput = null;
+        }
+    }
+
+    private static boolean isSupportedVersion(int version) {
+        return version == 1 || version == FORMAT_VERSION;
+    }
+
+    @NonNull
+    private static Entry readEntry(@NonNull DataInputStream input, int version)
+            throws IOException {
+        int fileIndex = input.readInt();
+        long seekPosition = input.readLong();
+        if (version == 1)
+            return new Entry(fileIndex, seekPosition, 0, null);
+
+        long lastPlayedTimeMs = input.readLong();
+        String colourSchemeName = input.readUTF();
+        ColourScheme colourScheme = null;
+        try {
+            if (!colourSchemeName.isEmpty())
+                colourScheme = ColourScheme.valueOf(colourSchemeName);
+        } catch (IllegalArgumentException e) {
+            // A colour scheme that no longer exists, a new one will be assigned.
+        }
+        return new Entry(fileIndex, seekPosition, lastPlayedTimeMs, colourScheme);
+    }
+
+    private static void writeEntry(@NonNull DataOutputStream output, @NonNull Entry entry)
+            throws IOException {
+        output.writeInt(entry.fileIndex);
+        output.writeLong(entry.seekPosition);
+        output.writeLong(entry.lastPlayedTimeMs);
+        output.writeUTF(entry.colourScheme != null ? entry.colourScheme.name() : "");
+    }
+
+    @NonNull
+    private static byte[] readFile(@NonNull File file) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) > 0)
+                output.write(buffer, 0, count);
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
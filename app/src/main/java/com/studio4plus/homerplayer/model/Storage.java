@@ -2,22 +2,47 @@ package com.studio4plus.homerplayer.model;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 
+import com.crashlytics.android.Crashlytics;
+import com.google.common.base.Preconditions;
+import com.studio4plus.homerplayer.concurrency.SimpleDeferred;
+import com.studio4plus.homerplayer.concurrency.SimpleFuture;
 import com.studio4plus.homerplayer.events.CurrentBookChangedEvent;
+import com.studio4plus.homerplayer.events.PlaybackStoppingEvent;
+import com.studio4plus.homerplayer.filescanner.FileSet;
+import com.studio4plus.homerplayer.filescanner.SavedStateLookup;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import de.greenrobot.event.EventBus;
 
-public class Storage implements AudioBook.UpdateObserver {
+public class Storage implements AudioBook.UpdateObserver, SavedStateLookup {
 
     private static final String PREFERENCES_NAME = Storage.class.getSimpleName();
+    private static final String LIBRARY_SNAPSHOT_FILE_NAME = "library";
     private static final String AUDIOBOOK_KEY_PREFIX = "audiobook_";
     private static final String LAST_AUDIOBOOK_KEY = "lastPlayedId";
 
@@ -29,68 +54,251 @@ public class Storage implements AudioBook.UpdateObserver {
     private static final String FIELD_FILE_DURATIONS = "fileDurations";
 
 
+    // Changes are written this long after the first one so that bursts of changes (e.g.
+    // durations of many files) are written together.
+    private static final long WRITE_DELAY_MS = TimeUnit.SECONDS.toMillis(3);
+
+    // The state of each book is split in two: the journal holds the position, last played time
+    // and colour, which change often and are needed to show the books, the durations store
+    // holds the file durations, which are large and rarely change.
+    // The preferences contain the state of books stored by previous versions, it is migrated
+    // when the journal is loaded.
+    // The durations are also added to the cache, by file, to be found when the id of a book
+    // changes.
     private final SharedPreferences preferences;
+    private final PositionJournal positionJournal;
+    private final FileDurationsStore fileDurationsStore;
+    private final FileDurationCache fileDurationCache;
+    private final LibrarySnapshot librarySnapshot;
+    private boolean isPositionJournalLoaded;
+
+    // Changes are collected on the main thread and written on the storage thread.
+    private final Handler mainThreadHandler;
+    private final Handler storageHandler;
+    private final Set<AudioBook> booksWithStateChanges = new LinkedHashSet<>();
+    private final Set<AudioBook> booksWithDurationChanges = new LinkedHashSet<>();
+    private boolean isWriteScheduled;
+    private int batchDepth;
+
+    private final Runnable scheduledWrite = new Runnable() {
+        @Override
+        public void run() {
+            isWriteScheduled = false;
+            flush(false);
+        }
+    };
 
     public Storage(Context context) {
         this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        this.positionJournal = new PositionJournal(context.getFilesDir());
+        this.fileDurationsStore = new FileDurationsStore(context.getFilesDir());
+        this.fileDurationCache = new FileDurationCache(context.getFilesDir());
+        this.librarySnapshot = new LibrarySnapshot(
+                new File(context.getFilesDir(), LIBRARY_SNAPSHOT_FILE_NAME));
+        this.mainThreadHandler = new Handler(context.getMainLooper());
+        HandlerThread storageThread = new HandlerThread("Storage");
+        storageThread.start();
+        this.storageHandler = new Handler(storageThread.getLooper());
         EventBus.getDefault().register(this);
     }
 
-    public void readAudioBookState(AudioBook audioBook) {
-        String bookData = preferences.getString(getAudioBookPreferenceKey(audioBook.getId()), null);
-        if (bookData != null) {
-            try {
-                ColourScheme colourScheme = null;
-                List<Long> durations = null;
-
-                JSONObject jsonObject = (JSONObject) new JSONTokener(bookData).nextValue();
-                JSONObject jsonPosition = jsonObject.getJSONObject(FIELD_POSITION);
-                String fileName = jsonPosition.optString(FIELD_POSITION_FILEPATH_DEPRECATED, null);
-                int fileIndex = jsonPosition.optInt(FIELD_POSITION_FILE_INDEX, -1);
-                long seek = jsonPosition.getLong(FIELD_POSITION_SEEK);
-
-                String colourSchemeName = jsonObject.optString(FIELD_COLOUR_SCHEME, null);
-                if (colourSchemeName != null) {
-                    colourScheme = ColourScheme.valueOf(colourSchemeName);
-                }
+    /**
+     * Create books for the file sets with their state, as needed to show them. The durations
+     * are read only for books with durations from the scan, to merge them, and for books
+     * without stored state, which also get durations from the cache. For others they are
+     * read by readAudioBookDurations when needed.
+     */
+    @WorkerThread
+    @NonNull
+    public List<AudioBook> readAudioBooks(@NonNull List<FileSet> fileSets) {
+        List<AudioBook> audioBooks = new ArrayList<>(fileSets.size());
+        for (FileSet fileSet : fileSets) {
+            AudioBook audioBook = new AudioBook(fileSet);
+            boolean isNewBook = !readAudioBookState(audioBook);
+            if (fileSet.fileDurations != null || isNewBook)
+                readAudioBookDurations(audioBook);
+            if (isNewBook) {
+                long[] cachedDurations = fileDurationCache.get(fileSet.files);
+                if (cachedDurations != null)
+                    audioBook.offerFileDurations(cachedDurations);
+            }
+            audioBooks.add(audioBook);
+        }
+        return audioBooks;
+    }
 
-                JSONArray jsonDurations = jsonObject.optJSONArray(FIELD_FILE_DURATIONS);
-                if (jsonDurations != null) {
-                    final int count = jsonDurations.length();
-                    durations = new ArrayList<>(count);
-                    for (int i = 0; i < count; ++i)
-                        durations.add(jsonDurations.getLong(i));
-                }
+    /**
+     * Returns the books found by the last scan, in the order they were shown.
+     */
+    @WorkerThread
+    @NonNull
+    public List<FileSet> readLibrarySnapshot() {
+        return librarySnapshot.read();
+    }
 
-                if (fileIndex >= 0)
-                    audioBook.restore(colourScheme, fileIndex, seek, durations);
-                else
-                    audioBook.restoreOldFormat(colourScheme, fileName, seek, durations);
-            } catch (JSONException e) {
-                e.printStackTrace();
+    public void writeLibrarySnapshot(@NonNull final List<FileSet> fileSets) {
+        storageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                librarySnapshot.write(fileSets);
             }
+        });
+    }
+
+    /**
+     * Read the position, last played time and colour of the book. It's enough to show the book,
+     * the durations are read separately with readAudioBookDurations.
+     * Returns false if there is no stored state.
+     */
+    public boolean readAudioBookState(AudioBook audioBook) {
+        PositionJournal.Entry state = getPositionJournal().get(audioBook.getId());
+        if (state != null) {
+            audioBook.restore(state.colourScheme,
+                              state.fileIndex,
+                              state.seekPosition,
+                              state.lastPlayedTimeMs);
+            return true;
+        } else {
+            String bookData =
+                    preferences.getString(getAudioBookPreferenceKey(audioBook.getId()), null);
+            if (bookData != null)
+                readOldFormatState(audioBook, bookData);
+            return bookData != null;
+        }
+    }
+
+    /**
+     * Read the stored durations of the files of the book, unless already read.
+     */
+    @WorkerThread
+    private void readAudioBookDurations(AudioBook audioBook) {
+        if (!audioBook.areStoredFileDurationsRead())
+            audioBook.restoreFileDurations(fileDurationsStore.read(audioBook.getId()));
+    }
+
+    /**
+     * Read the stored durations of the files of the book on the storage thread, unless
+     * already read. It needs to be done before the book is played.
+     * The result is the book, delivered on the main thread once the durations are set.
+     */
+    @MainThread
+    @NonNull
+    public SimpleFuture<AudioBook> readAudioBookDurationsAsync(@NonNull final AudioBook audioBook) {
+        final SimpleDeferred<AudioBook> result = new SimpleDeferred<>();
+        if (audioBook.areStoredFileDurationsRead()) {
+            result.setResult(audioBook);
+            return result;
         }
+        final String bookId = audioBook.getId();
+        storageHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long[] durations = fileDurationsStore.read(bookId);
+                mainThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!audioBook.areStoredFileDurationsRead())
+                            audioBook.restoreFileDurations(durations);
+                        result.setResult(audioBook);
+                    }
+                });
+            }
+        });
+        return result;
     }
 
+    /**
+     * Returns the stored durations of the files of the book, null if there are none.
+     */
+    @WorkerThread
+    @Nullable
+    long[] readStoredFileDurations(@NonNull String bookId) {
+        return fileDurationsStore.read(bookId);
+    }
+
+    /**
+     * Schedule writing the position, last played time and colour of the book.
+     */
+    @MainThread
     public void writeAudioBookState(AudioBook audioBook) {
-        JSONObject jsonAudioBook = new JSONObject();
-        JSONObject jsonPosition = new JSONObject();
-        AudioBook.Position position = audioBook.getLastPosition();
-        try {
-            jsonPosition.put(FIELD_POSITION_FILE_INDEX, position.fileIndex);
-            jsonPosition.put(FIELD_POSITION_SEEK, position.seekPosition);
-            JSONArray jsonDurations = new JSONArray(audioBook.getFileDurations());
-            jsonAudioBook.put(FIELD_POSITION, jsonPosition);
-            jsonAudioBook.putOpt(FIELD_COLOUR_SCHEME, audioBook.getColourScheme());
-            jsonAudioBook.put(FIELD_FILE_DURATIONS, jsonDurations);
-
-            SharedPreferences.Editor editor = preferences.edit();
-            String key = getAudioBookPreferenceKey(audioBook.getId());
-            editor.putString(key, jsonAudioBook.toString());
-            editor.apply();
-        } catch (JSONException e) {
-            // Should never happen, none of the values is null, NaN nor Infinity.
-            e.printStackTrace();
+        if (booksWithStateChanges.add(audioBook))
+            scheduleWrite();
+    }
+
+    @MainThread
+    public void writeAudioBookDurations(AudioBook audioBook) {
+        if (booksWithDurationChanges.add(audioBook))
+            scheduleWrite();
+    }
+
+    /**
+     * Start collecting changes to write them all at once in endBatch(), e.g. when updating
+     * all books. Batches may be nested.
+     */
+    @MainThread
+    public void beginBatch() {
+        ++batchDepth;
+    }
+
+    @MainThread
+    public void endBatch() {
+        Preconditions.checkState(batchDepth > 0);
+        if (--batchDepth == 0)
+            flush(false);
+    }
+
+    /**
+     * Write pending changes now. If waitForCompletion is set it returns once they (and any
+     * earlier ones) are stored, e.g. when the process may be killed.
+     */
+    @MainThread
+    public void flush(boolean waitForCompletion) {
+        if (isWriteScheduled) {
+            mainThreadHandler.removeCallbacks(scheduledWrite);
+            isWriteScheduled = false;
+        }
+        if (!waitForCompletion &&
+                booksWithStateChanges.isEmpty() && booksWithDurationChanges.isEmpty())
+            return;
+
+        final Map<String, PositionJournal.Entry> states =
+                new LinkedHashMap<>(booksWithStateChanges.size());
+        for (AudioBook audioBook : booksWithStateChanges) {
+            AudioBook.Position position = audioBook.getLastPosition();
+            states.put(audioBook.getId(), new PositionJournal.Entry(
+                    position.fileIndex,
+                    position.seekPosition,
+                    audioBook.getLastPlayedTimeMs(),
+                    audioBook.getColourScheme()));
+        }
+        booksWithStateChanges.clear();
+        final Map<FileSet, long[]> durations =
+                new LinkedHashMap<>(booksWithDurationChanges.size());
+        // Books whose stored durations haven't been read, they are merged when writing so as
+        // not to overwrite them with fewer ones.
+        final Set<String> durationsToMerge = new HashSet<>();
+        for (AudioBook audioBook : booksWithDurationChanges) {
+            durations.put(audioBook.getFileSet(), audioBook.getFileDurations());
+            if (!audioBook.areStoredFileDurationsRead())
+                durationsToMerge.add(audioBook.getId());
+        }
+        booksWithDurationChanges.clear();
+
+        FutureTask<Void> write = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                writeChanges(states, durations, durationsToMerge);
+            }
+        }, null);
+        storageHandler.post(write);
+        if (waitForCompletion) {
+            try {
+                write.get();
+            } catch (InterruptedException e) {
+                Crashlytics.logException(e);
+            } catch (ExecutionException e) {
+                Crashlytics.logException(e);
+            }
         }
     }
 
@@ -105,10 +313,92 @@ public class Storage implements AudioBook.UpdateObserver {
     }
 
     @Override
-    public void onAudioBookStateUpdated(AudioBook audioBook) {
+    public void onAudioBookPositionUpdated(AudioBook audioBook) {
         writeAudioBookState(audioBook);
     }
 
+    @Override
+    public void onAudioBookStateUpdated(AudioBook audioBook) {
+        writeAudioBookDurations(audioBook);
+    }
+
+    @Override
+    public boolean hasSavedState(@NonNull String bookId) {
+        return getPositionJournal().contains(bookId) ||
+                fileDurationsStore.contains(bookId) ||
+                preferences.contains(getAudioBookPreferenceKey(bookId));
+    }
+
+    private synchronized PositionJournal getPositionJournal() {
+        if (!isPositionJournalLoaded) {
+            positionJournal.load();
+            migratePreferences();
+            isPositionJournalLoaded = true;
+        }
+        return positionJournal;
+    }
+
+    // Moves the state stored in the preferences by previous versions to the journal and the
+    // durations store. Positions in the old format, with a file name instead of the index, need
+    // the files of the book so these are migrated when the book is read.
+    private void migratePreferences() {
+        Map<String, PositionJournal.Entry> states = new HashMap<>();
+        SharedPreferences.Editor editor = preferences.edit();
+        boolean isModified = false;
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(AUDIOBOOK_KEY_PREFIX) ||
+                    !(entry.getValue() instanceof String))
+                continue;
+            String bookId = entry.getKey().substring(AUDIOBOOK_KEY_PREFIX.length());
+            try {
+                PreferencesState state = PreferencesState.parse((String) entry.getValue());
+                if (state.fileDurations != null && !fileDurationsStore.contains(bookId))
+                    fileDurationsStore.write(bookId, state.fileDurations);
+                PositionJournal.Entry journalState = positionJournal.get(bookId);
+                if (journalState != null) {
+                    states.put(bookId, new PositionJournal.Entry(
+                            journalState.fileIndex,
+                            journalState.seekPosition,
+                            journalState.lastPlayedTimeMs,
+                            state.colourScheme));
+                } else if (state.fileName == null) {
+                    states.put(bookId, new PositionJournal.Entry(
+                            state.fileIndex, state.seekPosition, 0, state.colourScheme));
+                } else {
+                    continue;
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            editor.remove(entry.getKey());
+            isModified = true;
+        }
+        // The journal first, in case the process dies in between.
+        if (!states.isEmpty())
+            positionJournal.putAll(states);
+        if (isModified)
+            editor.commit();
+    }
+
+    private void readOldFormatState(final AudioBook audioBook, String bookData) {
+        try {
+            PreferencesState state = PreferencesState.parse(bookData);
+            if (state.fileName != null)
+                audioBook.restoreOldFormat(state.colourScheme, state.fileName, state.seekPosition);
+            else
+                audioBook.restore(state.colourScheme, state.fileIndex, state.seekPosition, 0);
+            // Stored in the journal, the preferences entry is removed then.
+            mainThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writeAudioBookState(audioBook);
+                }
+            });
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
     private String getAudioBookPreferenceKey(String id) {
         return AUDIOBOOK_KEY_PREFIX + id;
     }
@@ -117,4 +407,102 @@ public class Storage implements AudioBook.UpdateObserver {
     public void onEvent(CurrentBookChangedEvent event) {
         writeCurrentAudioBook(event.audioBook.getId());
     }
+
+    @SuppressWarnings("UnusedDeclaration")
+    @MainThread
+    public void onEvent(PlaybackStoppingEvent event) {
+        flush(false);
+    }
+
+    @MainThread
+    private void scheduleWrite() {
+        if (batchDepth == 0 && !isWriteScheduled) {
+            mainThreadHandler.postDelayed(scheduledWrite, WRITE_DELAY_MS);
+            isWriteScheduled = true;
+        }
+    }
+
+    // Called on the storage thread.
+    private void writeChanges(@NonNull Map<String, PositionJournal.Entry> states,
+                              @NonNull Map<FileSet, long[]> durations,
+                              @NonNull Set<String> durationsToMerge) {
+        PositionJournal journal = getPositionJournal();
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, PositionJournal.Entry> state : states.entrySet()) {
+            journal.put(state.getKey(), state.getValue());
+            String key = getAudioBookPreferenceKey(state.getKey());
+            if (preferences.contains(key)) {
+                if (editor == null)
+                    editor = preferences.edit();
+                editor.remove(key);
+            }
+        }
+        if (editor != null)
+            editor.commit();
+
+        for (Map.Entry<FileSet, long[]> bookDurations : durations.entrySet()) {
+            FileSet fileSet = bookDurations.getKey();
+            long[] bookFileDurations = bookDurations.getValue();
+            if (durationsToMerge.contains(fileSet.id)) {
+                bookFileDurations = mergeDurations(
+                        bookFileDurations, fileDurationsStore.read(fileSet.id));
+            }
+            fileDurationsStore.write(fileSet.id, bookFileDurations);
+            fileDurationCache.put(fileSet.id, fileSet.files, bookFileDurations);
+        }
+    }
+
+    // Fill in the durations that are unknown (0) with the stored ones.
+    @NonNull
+    private static long[] mergeDurations(
+            @NonNull long[] durations, @Nullable long[] storedDurations) {
+        if (storedDurations == null)
+            return durations;
+        long[] merged =
+                Arrays.copyOf(durations, Math.max(durations.length, storedDurations.length));
+        for (int i = 0; i < storedDurations.length; ++i) {
+            if (merged[i] == 0)
+                merged[i] = storedDurations[i];
+        }
+        return merged;
+    }
+
+    // The state of a book as stored in the preferences by previous versions.
+    private static class PreferencesState {
+        @Nullable ColourScheme colourScheme;
+        // Set for positions in the old format, with the file name instead of the index.
+        @Nullable String fileName;
+        int fileIndex;
+        long seekPosition;
+        @Nullable long[] fileDurations;
+
+        @NonNull
+        static PreferencesState parse(@NonNull String bookData) throws JSONException {
+            PreferencesState state = new PreferencesState();
+            JSONObject jsonObject = (JSONObject) new JSONTokener(bookData).nextValue();
+            JSONObject jsonPosition = jsonObject.optJSONObject(FIELD_POSITION);
+            if (jsonPosition != null) {
+                state.fileIndex = jsonPosition.optInt(FIELD_POSITION_FILE_INDEX, -1);
+                state.seekPosition = jsonPosition.getLong(FIELD_POSITION_SEEK);
+                if (state.fileIndex < 0) {
+                    state.fileIndex = 0;
+                    state.fileName =
+                            jsonPosition.optString(FIELD_POSITION_FILEPATH_DEPRECATED, null);
+                }
+            }
+
+            String colourSchemeName = jsonObject.optString(FIELD_COLOUR_SCHEME, null);
+            if (colourSchemeName != null)
+                state.colourScheme = ColourScheme.valueOf(colourSchemeName);
+
+            JSONArray jsonDurations = jsonObject.optJSONArray(FIELD_FILE_DURATIONS);
+            if (jsonDurations != null) {
+                final int count = jsonDurations.length();
+                state.fileDurations = new long[count];
+                for (int i = 0; i < count; ++i)
+                    state.fileDurations[i] = jsonDurations.getLong(i);
+            }
+            return state;
+        }
+    }
 }
@@ -0,0 +1,204 @@
+package com.studio4plus.homerplayer.model;
+
+import android.support.annotation.NonNull;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The titles of the books of a Library, for finding books quickly: by a prefix of the title
+ * and by the first letter (sections, e.g. for an alphabet to jump to).
+ *
+ * Titles are compared after normalization: lower case with accents removed, so that accented
+ * letters match the plain ones. The books are sorted with the collator of the current locale,
+ * its collation keys are kept and reused for the next library as long as the locale doesn't
+ * change.
+ */
+public class TitleIndex {
+
+    static final TitleIndex EMPTY = new TitleIndex(Locale.getDefault(), new Entry[0]);
+
+    // The section of titles that don't start with a letter.
+    public static final String OTHER_SECTION = "#";
+
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    private static class Entry {
+        final @NonNull String bookId;
+        final @NonNull CollationKey collationKey;
+        final @NonNull String normalizedTitle;
+
+        Entry(@NonNull String bookId,
+              @NonNull CollationKey collationKey,
+              @NonNull String normalizedTitle) {
+            this.bookId = bookId;
+            this.collationKey = collationKey;
+            this.normalizedTitle = normalizedTitle;
+        }
+    }
+
+    private final @NonNull Locale locale;
+    // In the order of the books.
+    private final @NonNull Entry[] entries;
+    // Indexes of the books ordered by normalized titles, for prefix search.
+    private final @NonNull int[] prefixOrder;
+    private final @NonNull List<String> sections;
+    private final @NonNull int[] sectionStarts;
+
+    /**
+     * Sort the books by their titles and create the index of the sorted list.
+     * @param previousIndex the index of the previous library, its collation keys are reused.
+     */
+    @NonNull
+    static TitleIndex sortByTitle(
+            @NonNull List<AudioBook> audioBooks, @NonNull TitleIndex previousIndex) {
+        Locale locale = Locale.getDefault();
+        Map<String, Entry> previousEntries = Collections.emptyMap();
+        if (locale.equals(previousIndex.locale)) {
+            previousEntries = new HashMap<>(previousIndex.entries.length * 2);
+            for (Entry entry : previousIndex.entries)
+                previousEntries.put(entry.bookId, entry);
+        }
+
+        Collator collator = Collator.getInstance(locale);
+        final Map<AudioBook, Entry> entriesByBook = new HashMap<>(audioBooks.size() * 2);
+        for (AudioBook audioBook : audioBooks) {
+            Entry entry = previousEntries.get(audioBook.getId());
+            if (entry == null) {
+                String title = audioBook.getTitle();
+                entry = new Entry(audioBook.getId(),
+                                  collator.getCollationKey(title),
+                                  normalize(title, locale));
+            }
+            entriesByBook.put(audioBook, entry);
+        }
+
+        Collections.sort(audioBooks, new Comparator<AudioBook>() {
+            @Override
+            public int compare(AudioBook lhs, AudioBook rhs) {
+                Entry lhsEntry = entriesByBook.get(lhs);
+                Entry rhsEntry = entriesByBook.get(rhs);
+                int result = lhsEntry.collationKey.compareTo(rhsEntry.collationKey);
+                return result != 0 ? result : lhsEntry.bookId.compareTo(rhsEntry.bookId);
+            }
+        });
+
+        Entry[] entries = new Entry[audioBooks.size()];
+        for (int i = 0; i < entries.length; ++i)
+            entries[i] = entriesByBook.get(audioBooks.get(i));
+        return new TitleIndex(locale, entries);
+    }
+
+    private TitleIndex(@NonNull Locale locale, @NonNull final Entry[] entries) {
+        this.locale = locale;
+        this.entries = entries;
+
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < order.length; ++i)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return entries[lhs].normalizedTitle.compareTo(entries[rhs].normalizedTitle);
+            }
+        });
+        this.prefixOrder = new int[order.length];
+        for (int i = 0; i < order.length; ++i)
+            prefixOrder[i] = order[i];
+
+        // The books are sorted so titles with the same first letter are next to each other,
+        // except in rare cases where the collator orders them differently. Such books are only
+        // reachable through the first occurrence of their section.
+        List<String> sections = new ArrayList<>();
+        List<Integer> sectionStarts = new ArrayList<>();
+        for (int i = 0; i < entries.length; ++i) {
+            String section = getSection(entries[i].normalizedTitle, locale);
+            if (!sections.contains(section)) {
+                sections.add(section);
+                sectionStarts.add(i);
+            }
+        }
+        this.sections = Collections.unmodifiableList(sections);
+        this.sectionStarts = new int[sectionStarts.size()];
+        for (int i = 0; i < this.sectionStarts.length; ++i)
+            this.sectionStarts[i] = sectionStarts.get(i);
+    }
+
+    /**
+     * Returns the indexes of the books whose titles start with the prefix, in the order of the
+     * library. Case and accents are ignored.
+     */
+    @NonNull
+    public int[] findByPrefix(@NonNull String prefix) {
+        String normalizedPrefix = normalize(prefix, locale);
+        int low = 0;
+        int high = prefixOrder.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entries[prefixOrder[middle]].normalizedTitle.compareTo(normalizedPrefix) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        int end = low;
+        while (end < prefixOrder.length &&
+                entries[prefixOrder[end]].normalizedTitle.startsWith(normalizedPrefix))
+            ++end;
+
+        int[] indexes = Arrays.copyOfRange(prefixOrder, low, end);
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    /**
+     * The first letters of the titles, upper case and without accents, in the order of the
+     * books. Titles that don't start with a letter are in OTHER_SECTION.
+     */
+    @NonNull
+    public List<String> getSections() {
+        return sections;
+    }
+
+    /**
+     * Returns the index of the first book in the section.
+     */
+    public int getSectionStart(int section) {
+        return sectionStarts[section];
+    }
+
+    /**
+     * Returns the section of the book at the index, -1 if there is none.
+     */
+    public int getSectionOf(int bookIndex) {
+        if (bookIndex < 0 || bookIndex >= entries.length)
+            return -1;
+        return sections.indexOf(getSection(entries[bookIndex].normalizedTitle, locale));
+    }
+
+    @NonNull
+    private static String normalize(@NonNull String title, @NonNull Locale locale) {
+        String decomposed = Normalizer.normalize(title.trim(), Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(locale);
+    }
+
+    @NonNull
+    private static String getSection(@NonNull String normalizedTitle, @NonNull Locale locale) {
+        if (normalizedTitle.isEmpty())
+            return OTHER_SECTION;
+        int firstCodePoint = normalizedTitle.codePointAt(0);
+        if (!Character.isLetter(firstCodePoint))
+            return OTHER_SECTION;
+        return new String(Character.toChars(firstCodePoint)).toUpperCase(locale);
+    }
+
+}
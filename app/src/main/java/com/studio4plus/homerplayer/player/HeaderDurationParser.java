@@ -0,0 +1,418 @@
+package com.studio4plus.homerplayer.player;
+
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads the duration of audio files from their headers, without decoding or preparing a
+ * player. Supports:
+ *  - MP3: the Xing/Info or VBRI header, otherwise the bitrate of constant bitrate files or the
+ *    number of frames,
+ *  - MP4 (M4A, M4B): the duration in the mvhd or mdhd box,
+ *  - Ogg (Vorbis, Opus): the granule position of the last page.
+ *
+ * The format is detected from the contents. Files in other formats or with damaged headers
+ * are left to the player.
+ *
+ * Also used to compute the durations of new books in the background, before they are played.
+ */
+public class HeaderDurationParser {
+
+    public static final long UNKNOWN_DURATION = 0;
+
+    // Frame headers are searched for this far after the ID3 tag.
+    private static final int MP3_SYNC_SEARCH_LENGTH = 64 * 1024;
+    // The bitrate of this many frames is compared to detect constant bitrate files.
+    private static final int MP3_CBR_CHECK_FRAME_COUNT = 8;
+    private static final int OGG_MAX_PAGE_LENGTH = 65307;
+
+    private static final int[][] MP3_BITRATES_KBPS = {
+            // MPEG 1: layer I, II, III.
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // MPEG 2 and 2.5: layer I, II and III.
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+    };
+    private static final int[] MP3_SAMPLE_RATES = {44100, 48000, 32000};
+
+    private HeaderDurationParser() {}
+
+    /**
+     * Returns the duration in milliseconds or UNKNOWN_DURATION if it can't be determined.
+     */
+    public static long readDuration(@NonNull File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[12];
+            if (input.read(header) < header.length)
+                return UNKNOWN_DURATION;
+            if (matches(header, 0, "OggS"))
+                return readOggDuration(input);
+            if (matches(header, 4, "ftyp"))
+                return readMp4Duration(input);
+        } finally {
+            input.close();
+        }
+        return readMp3Duration(file);
+    }
+
+    // MP3
+
+    private static class Mp3Frame {
+        final int version;  // 3: MPEG 1, 2: MPEG 2, 0: MPEG 2.5.
+        final int layer;  // 3: layer I, 2: layer II, 1: layer III.
+        final int bitrate;
+        final int sampleRate;
+        final int length;
+        final int samplesPerFrame;
+        final boolean isMono;
+
+        Mp3Frame(int header) {
+            version = (header >>> 19) & 3;
+            layer = (header >>> 17) & 3;
+            int bitrateIndex = (header >>> 12) & 15;
+            int sampleRateIndex = (header >>> 10) & 3;
+            int padding = (header >>> 9) & 1;
+            isMono = ((header >>> 6) & 3) == 3;
+
+            int tableIndex = version == 3
+                    ? 3 - layer : (layer == 3 ? 3 : 4);
+            bitrate = MP3_BITRATES_KBPS[tableIndex][bitrateIndex] * 1000;
+            int rate = MP3_SAMPLE_RATES[sampleRateIndex];
+            sampleRate = version == 3 ? rate : (version == 2 ? rate / 2 : rate / 4);
+            if (layer == 3) {
+                samplesPerFrame = 384;
+                length = (12 * bitrate / sampleRate + padding) * 4;
+            } else {
+                samplesPerFrame = layer == 1 && version != 3 ? 576 : 1152;
+                length = samplesPerFrame / 8 * bitrate / sampleRate + padding;
+            }
+        }
+
+        static boolean isValid(int header) {
+            return (header & 0xffe00000) == 0xffe00000 &&
+                    ((header >>> 19) & 3) != 1 &&
+                    ((header >>> 17) & 3) != 0 &&
+                    ((header >>> 12) & 15) != 0 &&
+                    ((header >>> 12) & 15) != 15 &&
+                    ((header >>> 10) & 3) != 3;
+        }
+
+        long durationMs(long frameCount) {
+            return frameCount * samplesPerFrame * 1000 / sampleRate;
+        }
+    }
+
+    private static long readMp3Duration(@NonNull File file) throws IOException {
+        ChunkReader input = new ChunkReader(new RandomAccessFile(file, "r"));
+        try {
+            long audioStart = findMp3FrameSync(input, getId3TagLength(input));
+            if (audioStart < 0)
+                return UNKNOWN_DURATION;
+
+            Mp3Frame frame = new Mp3Frame(input.readInt(audioStart));
+            byte[] frameData = input.read(audioStart, 4 + 32 + 18);
+            long frameCount = readXingFrameCount(frameData, frame);
+            if (frameCount < 0)
+                frameCount = readVbriFrameCount(frameData);
+            if (frameCount > 0)
+                return frame.durationMs(frameCount);
+
+            return countMp3Frames(input, frame, audioStart);
+        } catch (EOFException e) {
+            return UNKNOWN_DURATION;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static long getId3TagLength(@NonNull ChunkReader input) throws IOException {
+        byte[] header = input.read(0, 10);
+        if (header.length < 10 || !matches(header, 0, "ID3"))
+            return 0;
+        long length = 10 + (((header[6] & 0x7f) << 21) | ((header[7] & 0x7f) << 14) |
+                ((header[8] & 0x7f) << 7) | (header[9] & 0x7f));
+        if ((header[5] & 0x10) != 0)
+            length += 10;  // Footer.
+        return length;
+    }
+
+    // Returns the offset of the first frame, -1 if not found.
+    private static long findMp3FrameSync(@NonNull ChunkReader input, long start)
+            throws IOException {
+        long end = Math.min(start + MP3_SYNC_SEARCH_LENGTH, input.length() - 4);
+        for (long offset = start; offset < end; ++offset) {
+            int header = input.readInt(offset);
+            if (Mp3Frame.isValid(header)) {
+                // Make sure that it's not a false sync by checking the next frame.
+                long nextOffset = offset + new Mp3Frame(header).length;
+                if (nextOffset + 4 > input.length() ||
+                        Mp3Frame.isValid(input.readInt(nextOffset)))
+                    return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static long readXingFrameCount(@NonNull byte[] frameData, @NonNull Mp3Frame frame) {
+        if (frame.layer != 1)
+            return -1;
+        int sideInfoLength = frame.version == 3
+                ? (frame.isMono ? 17 : 32) : (frame.isMono ? 9 : 17);
+        int offset = 4 + sideInfoLength;
+        boolean isXing = matches(frameData, offset, "Xing");
+        boolean isInfo = matches(frameData, offset, "Info");
+        if ((!isXing && !isInfo) || offset + 12 > frameData.length)
+            return -1;
+        int flags = readInt(frameData, offset + 4);
+        if ((flags & 1) == 0)
+            return -1;
+        return readInt(frameData, offset + 8) & 0xffffffffL;
+    }
+
+    private static long readVbriFrameCount(@NonNull byte[] frameData) {
+        final int offset = 4 + 32;
+        if (!matches(frameData, offset, "VBRI") || offset + 18 > frameData.length)
+            return -1;
+        return readInt(frameData, offset + 14) & 0xffffffffL;
+    }
+
+    // Constant bitrate files are estimated from their length, like the player does. Others
+    // have all their frames counted.
+    private static long countMp3Frames(
+            @NonNull ChunkReader input, @NonNull Mp3Frame firstFrame, long audioStart)
+            throws IOException {
+        long frameCount = 0;
+        boolean isConstantBitrate = true;
+        long offset = audioStart;
+        long end = input.length() - 4;
+        while (offset <= end) {
+            int header = input.readInt(offset);
+            // The end of audio data, e.g. an ID3v1 or APE tag.
+            if (!Mp3Frame.isValid(header))
+                break;
+            Mp3Frame frame = new Mp3Frame(header);
+            isConstantBitrate &= frame.bitrate == firstFrame.bitrate;
+            if (isConstantBitrate && frameCount == MP3_CBR_CHECK_FRAME_COUNT) {
+                long audioLength = input.length() - audioStart;
+                if (matches(input.read(input.length() - 128, 3), 0, "TAG"))
+                    audioLength -= 128;
+                return audioLength * 8 * 1000 / firstFrame.bitrate;
+            }
+            ++frameCount;
+            offset += frame.length;
+        }
+        return firstFrame.durationMs(frameCount);
+    }
+
+    // Reads a file in chunks, for parsing many small headers spread over the file.
+    private static class ChunkReader {
+        private static final int CHUNK_LENGTH = 64 * 1024;
+
+        private final @NonNull RandomAccessFile file;
+        private final long length;
+        private final @NonNull byte[] chunk = new byte[CHUNK_LENGTH];
+        private long chunkStart;
+        private int chunkLength;
+
+        ChunkReader(@NonNull RandomAccessFile file) throws IOException {
+            this.file = file;
+            this.length = file.length();
+        }
+
+        long length() {
+            return length;
+        }
+
+        int readInt(long offset) throws IOException {
+            int start = load(offset, 4);
+            return HeaderDurationParser.readInt(chunk, start);
+        }
+
+        // Returns count bytes, fewer at the end of the file.
+        @NonNull
+        byte[] read(long offset, int count) throws IOException {
+            count = (int) Math.max(0, Math.min(count, length - offset));
+            int start = load(offset, count);
+            byte[] data = new byte[count];
+            System.arraycopy(chunk, start, data, 0, count);
+            return data;
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+
+        // Returns the position of offset in the chunk.
+        private int load(long offset, int count) throws IOException {
+            if (offset < 0 || offset + count > length)
+                throw new EOFException();
+            if (offset < chunkStart || offset + count > chunkStart + chunkLength) {
+                chunkStart = offset;
+                chunkLength = (int) Math.min(CHUNK_LENGTH, length - offset);
+                file.seek(offset);
+                file.readFully(chunk, 0, chunkLength);
+            }
+            return (int) (offset - chunkStart);
+        }
+    }
+
+    // MP4
+
+    private static long readMp4Duration(@NonNull RandomAccessFile input) throws IOException {
+        long moovEnd = findBox(input, 0, input.length(), "moov");
+        if (moovEnd < 0)
+            return UNKNOWN_DURATION;
+        long moovStart = input.getFilePointer();
+
+        long mvhdEnd = findBox(input, moovStart, moovEnd, "mvhd");
+        if (mvhdEnd >= 0) {
+            long duration = readMp4HeaderDuration(input);
+            if (duration > 0)
+                return duration;
+        }
+
+        // The duration of the first track with one.
+        long trakStart = moovStart;
+        long trakEnd;
+        while ((trakEnd = findBox(input, trakStart, moovEnd, "trak")) >= 0) {
+            long mdiaEnd = findBox(input, input.getFilePointer(), trakEnd, "mdia");
+            if (mdiaEnd >= 0 && findBox(input, input.getFilePointer(), mdiaEnd, "mdhd") >= 0) {
+                long duration = readMp4HeaderDuration(input);
+                if (duration > 0)
+                    return duration;
+            }
+            trakStart = trakEnd;
+        }
+        return UNKNOWN_DURATION;
+    }
+
+    // Finds the box of the type among the boxes from start to end. Returns the end of the box,
+    // the input is positioned at its contents. -1 if not found.
+    private static long findBox(
+            @NonNull RandomAccessFile input, long start, long end, @NonNull String type)
+            throws IOException {
+        long offset = start;
+        byte[] header = new byte[8];
+        while (offset + 8 <= end) {
+            input.seek(offset);
+            input.readFully(header);
+            long size = readInt(header, 0) & 0xffffffffL;
+            long headerLength = 8;
+            if (size == 1) {
+                size = input.readLong();
+                headerLength = 16;
+            } else if (size == 0) {
+                size = end - offset;
+            }
+            if (size < headerLength)
+                return -1;
+            if (matches(header, 4, type)) {
+                input.seek(offset + headerLength);
+                return Math.min(offset + size, end);
+            }
+            offset += size;
+        }
+        return -1;
+    }
+
+    // Reads a mvhd or mdhd box, they start the same way.
+    private static long readMp4HeaderDuration(@NonNull RandomAccessFile input)
+            throws IOException {
+        int version = input.readInt() >>> 24;
+        long timescale;
+        long duration;
+        if (version == 1) {
+            input.skipBytes(16);
+            timescale = input.readInt() & 0xffffffffL;
+            duration = input.readLong();
+        } else {
+            input.skipBytes(8);
+            timescale = input.readInt() & 0xffffffffL;
+            duration = input.readInt() & 0xffffffffL;
+            // All ones means unknown.
+            if (duration == 0xffffffffL)
+                return UNKNOWN_DURATION;
+        }
+        if (timescale == 0 || duration <= 0)
+            return UNKNOWN_DURATION;
+        return duration * 1000 / timescale;
+    }
+
+    // Ogg
+
+    private static long readOggDuration(@NonNull RandomAccessFile input) throws IOException {
+        // The identification header is in the first page.
+        byte[] firstPage = new byte[(int) Math.min(input.length(), 512)];
+        input.seek(0);
+        input.readFully(firstPage);
+        if (firstPage.length < 27)
+            return UNKNOWN_DURATION;
+        int serialNumber = readIntLittleEndian(firstPage, 14);
+        int segmentCount = firstPage[26] & 0xff;
+        int packetStart = 27 + segmentCount;
+
+        long sampleRate;
+        long preSkip = 0;
+        if (matches(firstPage, packetStart, "\u0001vorbis") &&
+                packetStart + 16 <= firstPage.length) {
+            sampleRate = readIntLittleEndian(firstPage, packetStart + 12) & 0xffffffffL;
+        } else if (matches(firstPage, packetStart, "OpusHead") &&
+                packetStart + 12 <= firstPage.length) {
+            // Opus granule positions are always at 48kHz.
+            sampleRate = 48000;
+            preSkip = (firstPage[packetStart + 10] & 0xff) |
+                    ((firstPage[packetStart + 11] & 0xff) << 8);
+        } else {
+            return UNKNOWN_DURATION;
+        }
+        if (sampleRate == 0)
+            return UNKNOWN_DURATION;
+
+        // The last page of the stream, with a granule position.
+        long fileLength = input.length();
+        int tailLength = (int) Math.min(fileLength, OGG_MAX_PAGE_LENGTH + 27);
+        byte[] tail = new byte[tailLength];
+        input.seek(fileLength - tailLength);
+        input.readFully(tail);
+        for (int i = tailLength - 27; i >= 0; --i) {
+            if (tail[i] == 'O' && tail[i + 1] == 'g' && tail[i + 2] == 'g' &&
+                    tail[i + 3] == 'S' && tail[i + 4] == 0 &&
+                    readIntLittleEndian(tail, i + 14) == serialNumber) {
+                long granule = readIntLittleEndian(tail, i + 6) & 0xffffffffL |
+                        ((long) readIntLittleEndian(tail, i + 10) << 32);
+                // -1 for pages without the end of a packet.
+                if (granule > 0)
+                    return Math.max(0, granule - preSkip) * 1000 / sampleRate;
+            }
+        }
+        return UNKNOWN_DURATION;
+    }
+
+    private static boolean matches(@NonNull byte[] data, int offset, @NonNull String text) {
+        if (offset + text.length() > data.length)
+            return false;
+        for (int i = 0; i < text.length(); ++i) {
+            if (data[offset + i] != (byte) text.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int readInt(@NonNull byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) |
+                ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static int readIntLittleEndian(@NonNull byte[] data, int offset) {
+        return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8) |
+                ((data[offset + 2] & 0xff) << 16) | ((data[offset + 3] & 0xff) << 24);
+    }
+
+}
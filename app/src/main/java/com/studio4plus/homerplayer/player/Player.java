@@ -4,6 +4,7 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.NonNull;
 
 import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.ExoPlayerFactory;
@@ -19,11 +20,27 @@ import com.google.android.exoplayer2.upstream.FileDataSourceFactory;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Player {
 
+    // Reading file headers is bound by storage access, a few threads are enough.
+    private static final int DURATION_THREAD_COUNT = 4;
+    private static final long DURATION_THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final ExecutorService durationWorkers = createDurationWorkers();
+
     private final SimpleExoPlayer exoPlayer;
 
     private float playbackSpeed = 1.0f;
@@ -37,7 +54,7 @@ public class Player {
     }
 
     public DurationQueryController createDurationQuery(List<File> files) {
-        return new DurationQueryControllerImpl(files);
+        return new HeaderDurationQueryControllerImpl(new Handler(Looper.myLooper()), files);
     }
 
     public void setPlaybackSpeed(float speed) {
@@ -166,6 +183,99 @@ public class Player {
         }
     }
 
+    /**
+     * Reads the durations from the headers of the files on worker threads. Only the files
+     * whose headers can't be parsed are prepared with the player, one at a time.
+     */
+    private class HeaderDurationQueryControllerImpl implements DurationQueryController {
+
+        private final Handler handler;
+        private final List<File> files;
+        private final List<Future<?>> tasks = new ArrayList<>();
+        private final Set<File> unparsedFiles = new HashSet<>();
+        private Observer observer;
+        private int pendingFileCount;
+        private boolean isStopped = false;
+        private DurationQueryController playerQuery;
+
+        private HeaderDurationQueryControllerImpl(Handler handler, List<File> files) {
+            Preconditions.checkArgument(!files.isEmpty());
+            this.handler = handler;
+            this.files = files;
+        }
+
+        @Override
+        public void start(Observer observer) {
+            this.observer = observer;
+            pendingFileCount = files.size();
+            for (final File file : files) {
+                tasks.add(durationWorkers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        long duration;
+                        try {
+                            duration = HeaderDurationParser.readDuration(file);
+                        } catch (IOException e) {
+                            duration = HeaderDurationParser.UNKNOWN_DURATION;
+                        }
+                        final long durationMs = duration;
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                onFileParsed(file, durationMs);
+                            }
+                        });
+                    }
+                }));
+            }
+        }
+
+        @Override
+        public void stop() {
+            if (playerQuery != null) {
+                playerQuery.stop();
+            } else if (!isStopped) {
+                isStopped = true;
+                for (Future<?> task : tasks)
+                    task.cancel(false);
+                tasks.clear();
+                // The player hasn't been used, release it like the other queries do.
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        exoPlayer.release();
+                        observer.onPlayerReleased();
+                    }
+                });
+            }
+        }
+
+        private void onFileParsed(File file, long durationMs) {
+            if (isStopped)
+                return;
+
+            if (durationMs != HeaderDurationParser.UNKNOWN_DURATION)
+                observer.onDuration(file, durationMs);
+            else
+                unparsedFiles.add(file);
+
+            if (--pendingFileCount == 0) {
+                tasks.clear();
+                if (unparsedFiles.isEmpty()) {
+                    observer.onFinished();
+                } else {
+                    List<File> remainingFiles = new ArrayList<>(unparsedFiles.size());
+                    for (File remainingFile : files) {
+                        if (unparsedFiles.contains(remainingFile))
+                            remainingFiles.add(remainingFile);
+                    }
+                    playerQuery = new DurationQueryControllerImpl(remainingFiles);
+                    playerQuery.start(observer);
+                }
+            }
+        }
+    }
+
     private class DurationQueryControllerImpl
             extends com.google.android.exoplayer2.Player.DefaultEventListener
             implements DurationQueryController {
@@ -230,4 +340,22 @@ public class Player {
             return hasNext;
         }
     }
+
+    private static ExecutorService createDurationWorkers() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                DURATION_THREAD_COUNT, DURATION_THREAD_COUNT,
+                DURATION_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        return new Thread(runnable, "Duration-" + threadCount.incrementAndGet());
+                    }
+                });
+        // Don't keep idle threads around between queries.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 }
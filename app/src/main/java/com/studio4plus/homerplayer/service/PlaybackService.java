@@ -16,11 +16,14 @@ import com.google.common.base.Preconditions;
 import com.studio4plus.homerplayer.GlobalSettings;
 import com.studio4plus.homerplayer.HomerPlayerApplication;
 import com.studio4plus.homerplayer.R;
+import com.studio4plus.homerplayer.concurrency.SimpleFuture;
 import com.studio4plus.homerplayer.events.PlaybackErrorEvent;
 import com.studio4plus.homerplayer.events.PlaybackProgressedEvent;
+import com.studio4plus.homerplayer.events.PlaybackStartedEvent;
 import com.studio4plus.homerplayer.events.PlaybackStoppedEvent;
 import com.studio4plus.homerplayer.events.PlaybackStoppingEvent;
 import com.studio4plus.homerplayer.model.AudioBook;
+import com.studio4plus.homerplayer.model.Storage;
 import com.studio4plus.homerplayer.player.DurationQueryController;
 import com.studio4plus.homerplayer.player.PlaybackController;
 import com.studio4plus.homerplayer.player.Player;
@@ -46,13 +49,17 @@ public class PlaybackService
     private static final long FADE_OUT_DURATION_MS = TimeUnit.SECONDS.toMillis(10);
 
     private static final int NOTIFICATION_ID = R.string.playback_service_notification;
+    private static final PlaybackStartedEvent PLAYBACK_STARTED_EVENT = new PlaybackStartedEvent();
     private static final PlaybackStoppingEvent PLAYBACK_STOPPING_EVENT = new PlaybackStoppingEvent();
     private static final PlaybackStoppedEvent PLAYBACK_STOPPED_EVENT = new PlaybackStoppedEvent();
 
     @Inject public GlobalSettings globalSettings;
     @Inject public EventBus eventBus;
+    @Inject public Storage storage;
 
     private Player player;
+    // The book whose stored durations are being read, before the player is created.
+    private AudioBook bookBeingPrepared;
     private DurationQuery durationQueryInProgress;
     private AudioBookPlayback playbackInProgress;
     private DeviceMotionDetector motionDetector;
@@ -80,16 +87,18 @@ public class PlaybackService
     public void onDestroy() {
         super.onDestroy();
         stopPlayback();
+        // The process may be killed once the service is gone.
+        storage.flush(true);
     }
 
     public void startPlayback(AudioBook book) {
         Preconditions.checkState(playbackInProgress == null);
         Preconditions.checkState(durationQueryInProgress == null);
         Preconditions.checkState(player == null);
+        Preconditions.checkState(bookBeingPrepared == null);
 
+        eventBus.post(PLAYBACK_STARTED_EVENT);
         requestAudioFocus();
-        player = HomerPlayerApplication.getComponent(getApplicationContext()).createAudioBookPlayer();
-        player.setPlaybackSpeed(globalSettings.getPlaybackSpeed());
 
         if (motionDetector != null)
             motionDetector.enable();
@@ -100,6 +109,31 @@ public class PlaybackService
                 android.R.drawable.ic_media_play);
         startForeground(NOTIFICATION_ID, notification);
 
+        // The stored durations are read on the storage thread.
+        bookBeingPrepared = book;
+        storage.readAudioBookDurationsAsync(book).addListener(
+                new SimpleFuture.Listener<AudioBook>() {
+                    @Override
+                    public void onResult(@NonNull AudioBook result) {
+                        // Playback may have been stopped in the meantime.
+                        if (bookBeingPrepared == result) {
+                            bookBeingPrepared = null;
+                            startPlayer(result);
+                        }
+                    }
+
+                    @Override
+                    public void onException(@NonNull Throwable t) {
+                        Crashlytics.logException(t);
+                        stopPlayback();
+                    }
+                });
+    }
+
+    private void startPlayer(AudioBook book) {
+        player = HomerPlayerApplication.getComponent(getApplicationContext()).createAudioBookPlayer();
+        player.setPlaybackSpeed(globalSettings.getPlaybackSpeed());
+
         if (book.getTotalDurationMs() == AudioBook.UNKNOWN_POSITION) {
             Crashlytics.log("PlaybackService.startPlayback: create DurationQuery");
             durationQueryInProgress = new DurationQuery(player, book);
@@ -111,9 +145,9 @@ public class PlaybackService
     }
 
     public State getState() {
-        if (player == null) {
+        if (player == null && bookBeingPrepared == null) {
             return State.IDLE;
-        } else if (durationQueryInProgress != null) {
+        } else if (durationQueryInProgress != null || bookBeingPrepared != null) {
             return State.PREPARATION;
         } else {
             Preconditions.checkNotNull(playbackInProgress);
@@ -142,6 +176,7 @@ public class PlaybackService
     }
 
     public void stopPlayback() {
+        boolean isPreparing = bookBeingPrepared != null;
         if (durationQueryInProgress != null)
             durationQueryInProgress.stop();
         else if (playbackInProgress != null)
@@ -149,6 +184,9 @@ public class PlaybackService
 
         Crashlytics.log("PlaybackService.stopPlayback");
         onPlaybackEnded();
+        // There is no player to report its release.
+        if (isPreparing)
+            onPlayerReleased();
     }
 
     @Override
@@ -178,6 +216,7 @@ public class PlaybackService
     }
 
     private void onPlaybackEnded() {
+        bookBeingPrepared = null;
         durationQueryInProgress = null;
         playbackInProgress = null;
         if (motionDetector != null)
@@ -249,7 +288,7 @@ public class PlaybackService
             controller.setObserver(this);
             AudioBook.Position position = audioBook.getLastPosition();
             long startPositionMs = Math.max(0, position.seekPosition - jumpBackMs);
-            controller.start(position.file, startPositionMs);
+            controller.start(position.getFile(), startPositionMs);
             handler.postDelayed(updatePosition, UPDATE_TIME_MS);
         }
 
@@ -265,7 +304,7 @@ public class PlaybackService
 
         public void resumeFromRewind() {
             AudioBook.Position position = audioBook.getLastPosition();
-            controller.start(position.file, position.seekPosition);
+            controller.start(position.getFile(), position.seekPosition);
             handler.postDelayed(updatePosition, UPDATE_TIME_MS);
             resetSleepTimer();
         }
@@ -297,7 +336,7 @@ public class PlaybackService
                     (hasMoreToPlay ? "more to play" : "finished"));
             if (hasMoreToPlay) {
                 AudioBook.Position position = audioBook.getLastPosition();
-                controller.start(position.file, position.seekPosition);
+                controller.start(position.getFile(), position.seekPosition);
             } else {
                 handler.removeCallbacks(updatePosition);
                 audioBook.resetPosition();
@@ -10,9 +10,15 @@ import android.support.annotation.Nullable;
 import com.google.common.base.Preconditions;
 import com.studio4plus.homerplayer.events.AudioBooksChangedEvent;
 import com.studio4plus.homerplayer.events.CurrentBookChangedEvent;
+import com.studio4plus.homerplayer.model.AudioBook;
 import com.studio4plus.homerplayer.model.AudioBookManager;
+import com.studio4plus.homerplayer.model.Library;
+import com.studio4plus.homerplayer.model.TitleIndex;
 import com.studio4plus.homerplayer.concurrency.SimpleFuture;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.inject.Inject;
 
 import de.greenrobot.event.EventBus;
@@ -55,6 +61,8 @@ public class UiControllerBookList {
     private @Nullable SimpleFuture<Speaker> speakerFuture;
     private @Nullable SimpleFuture.Listener<Speaker> speakerListener;
     private @Nullable Speaker speaker;
+    // The version of the library shown by the ui, -1 if none.
+    private int shownLibraryVersion = -1;
 
     private UiControllerBookList(@NonNull Context context,
                                  @NonNull AudioBookManager audioBookManager,
@@ -120,6 +128,42 @@ public class UiControllerBookList {
         speak(audioBookManager.getById(bookId).getTitle());
     }
 
+    /**
+     * The first letters of the titles, for jumping to books with jumpToSection.
+     */
+    @NonNull
+    public List<String> getTitleSections() {
+        return audioBookManager.getLibrary().getTitleIndex().getSections();
+    }
+
+    /**
+     * Select the first book in the section, the ui shows it with updateCurrentBook.
+     * The section may be gone if the books have changed since getTitleSections, then nothing
+     * happens.
+     */
+    public void jumpToSection(@NonNull String section) {
+        Library library = audioBookManager.getLibrary();
+        TitleIndex titleIndex = library.getTitleIndex();
+        int sectionIndex = titleIndex.getSections().indexOf(section);
+        if (sectionIndex < 0)
+            return;
+        int index = titleIndex.getSectionStart(sectionIndex);
+        audioBookManager.setCurrentBook(library.getAudioBooks().get(index).getId());
+    }
+
+    /**
+     * Returns the books whose titles start with the prefix, ignoring case and accents.
+     */
+    @NonNull
+    public List<AudioBook> findBooks(@NonNull String titlePrefix) {
+        Library library = audioBookManager.getLibrary();
+        int[] indexes = library.getTitleIndex().findByPrefix(titlePrefix);
+        List<AudioBook> audioBooks = new ArrayList<>(indexes.length);
+        for (int index : indexes)
+            audioBooks.add(library.getAudioBooks().get(index));
+        return audioBooks;
+    }
+
     @SuppressWarnings("UnusedDeclaration")
     public void onEvent(AudioBooksChangedEvent event) {
         updateAudioBooks();
@@ -147,9 +191,11 @@ public class UiControllerBookList {
     }
 
     private void updateAudioBooks() {
-        ui.updateBookList(
-                audioBookManager.getAudioBooks(),
-                audioBookManager.getCurrentBookIndex());
+        Library library = audioBookManager.getLibrary();
+        if (library.version != shownLibraryVersion) {
+            shownLibraryVersion = library.version;
+            ui.updateBookList(library.getAudioBooks(), audioBookManager.getCurrentBookIndex());
+        }
     }
 
     private void speakCurrentTitle() {
@@ -94,8 +94,12 @@ public class ClassicBookList extends Fragment implements BookListUi {
     }
 
     @Override
-    public void updateCurrentBook(int currentBookId) {
-
+    public void updateCurrentBook(int currentBookIndex) {
+        // Follow selections made elsewhere, e.g. jumping to a section of titles.
+        if (bookAdapter != null && bookAdapter.getCount() > 0 && currentBookIndex >= 0 &&
+                bookAdapter.getBookIndex(bookPager.getCurrentItem()) != currentBookIndex) {
+            bookPager.setCurrentItem(bookAdapter.bookIndexToViewIndex(currentBookIndex), false);
+        }
     }
 
     @Override
@@ -9,18 +9,70 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class FilesystemUtil {
 
+    /**
+     * A storage root directory together with an identifier of the volume it is on.
+     */
+    public static class Volume {
+        public final File rootDir;
+        // The mount point of the volume. It is stable for a given volume, e.g. the mount points
+        // of SD cards contain their filesystem UUIDs.
+        public final String id;
+
+        Volume(File rootDir, String id) {
+            this.rootDir = rootDir;
+            this.id = id;
+        }
+    }
+
+    private static final File MOUNTS_FILE = new File("/proc/mounts");
+
+    // Resolving the root directories takes a number of system calls. The resolved volumes are
+    // reused until either the contents of /proc/mounts change or invalidateVolumes() is called.
+    private static List<Volume> cachedVolumes;
+    private static String cachedMountsContents;
+
     public static List<File> listRootDirs(Context context) {
-        List<File> rootDirs = listStorageMounts();
+        List<Volume> volumes = listVolumes(context);
+        List<File> rootDirs = new ArrayList<>(volumes.size());
+        for (Volume volume : volumes)
+            rootDirs.add(volume.rootDir);
+        return rootDirs;
+    }
+
+    public static synchronized List<Volume> listVolumes(Context context) {
+        String mountsContents = readMounts();
+        if (cachedVolumes == null || !mountsContents.equals(cachedMountsContents)) {
+            cachedVolumes = Collections.unmodifiableList(resolveVolumes(context, mountsContents));
+            cachedMountsContents = mountsContents;
+        }
+        return cachedVolumes;
+    }
+
+    /**
+     * Drop the resolved volumes, e.g. when storage is mounted or unmounted.
+     */
+    public static synchronized void invalidateVolumes() {
+        cachedVolumes = null;
+        cachedMountsContents = null;
+    }
+
+    private static List<Volume> resolveVolumes(Context context, String mountsContents) {
+        List<String> mountPoints = parseMountPoints(mountsContents);
+        List<File> rootDirs = listStorageMounts(mountPoints);
         for (File rootDir : listSemiPermanentRootDirs(context)) {
             if (!rootDirs.contains(rootDir))
                 rootDirs.add(rootDir);
         }
 
-        return rootDirs;
+        List<Volume> volumes = new ArrayList<>(rootDirs.size());
+        for (File rootDir : rootDirs)
+            volumes.add(new Volume(rootDir, getMountPoint(mountPoints, rootDir)));
+        return volumes;
     }
 
     private static File getFSRootForPath(File path) {
@@ -34,28 +86,62 @@ public class FilesystemUtil {
         return path;
     }
 
+    // Returns the contents of /proc/mounts, empty if it can't be read.
+    private static String readMounts() {
+        StringBuilder contents = new StringBuilder();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(MOUNTS_FILE));
+            try {
+                char[] buffer = new char[4096];
+                int count;
+                while ((count = reader.read(buffer)) > 0)
+                    contents.append(buffer, 0, count);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // Ignore, just return as much as has been read.
+        }
+        return contents.toString();
+    }
+
+    private static List<String> parseMountPoints(String mountsContents) {
+        List<String> mountPoints = new ArrayList<>();
+        for (String line : mountsContents.split("\n")) {
+            String[] fields = line.split(" +");
+            if (fields.length >= 2)
+                mountPoints.add(fields[1]);
+        }
+        return mountPoints;
+    }
+
     // Returns all system mount points that start with /storage.
     // This is likely to list attached SD cards, including those that are hidden from
     // Context.getExternalFilesDir()..
     // Some of the returned files may not be accessible due to permissions.
-    private static List<File> listStorageMounts() {
+    private static List<File> listStorageMounts(List<String> mountPoints) {
         List<File> mounts = new ArrayList<>();
-        File mountsFile = new File("/proc/mounts");
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(mountsFile));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] fields = line.split(" +");
-                if (fields.length >= 2 && fields[1].startsWith("/storage")) {
-                    mounts.add(new File(fields[1]));
-                }
-            }
-        } catch (IOException e) {
-            // Ignore, just return as much as is accumulated in mounts.
+        for (String mountPoint : mountPoints) {
+            if (mountPoint.startsWith("/storage"))
+                mounts.add(new File(mountPoint));
         }
         return mounts;
     }
 
+    // Returns the longest mount point containing the path or the path itself if there is none.
+    private static String getMountPoint(List<String> mountPoints, File path) {
+        String pathString = path.getPath();
+        String bestMatch = null;
+        for (String mountPoint : mountPoints) {
+            boolean contains = pathString.equals(mountPoint) ||
+                    pathString.startsWith(mountPoint.endsWith(File.separator)
+                            ? mountPoint : mountPoint + File.separator);
+            if (contains && (bestMatch == null || mountPoint.length() > bestMatch.length()))
+                bestMatch = mountPoint;
+        }
+        return bestMatch != null ? bestMatch : pathString;
+    }
+
     // Returns a list of file system roots on all semi-permanent storage mounts.
     // Semi-permanent storage is removable medium that is part of the device (e.g. an SD slot
     // inside the battery compartment) and therefore unlikely to be removed often.
@@ -0,0 +1,121 @@
+package com.studio4plus.homerplayer.model;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileDurationsStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void encodesAndDecodesDurations() {
+        long[] durations = {
+                1800000, 1795000, 60000, 0, AudioBook.NO_DURATION, 3600000,
+                AudioBook.NO_DURATION, Long.MAX_VALUE / 2 };
+        assertArrayEquals(durations, decode(FileDurationsStore.encode(durations)));
+    }
+
+    @Test
+    public void encodesAndDecodesNoDurations() {
+        long[] durations = {};
+        assertArrayEquals(durations, decode(FileDurationsStore.encode(durations)));
+    }
+
+    @Test
+    public void encodesSimilarDurationsCompactly() {
+        long[] durations = new long[100];
+        for (int i = 0; i < durations.length; ++i)
+            durations[i] = 1800000 + (i % 2 == 0 ? 1000 : -1000);
+        // Version, count, first duration and checksum aside, three bytes per difference.
+        assertTrue(FileDurationsStore.encode(durations).length <= 2 + 3 + 3 * 99 + 4);
+    }
+
+    @Test
+    public void rejectsChecksumMismatch() {
+        byte[] data = FileDurationsStore.encode(new long[] { 1000, 2000, 3000 });
+        for (int i = 0; i < data.length; ++i) {
+            byte[] damaged = Arrays.copyOf(data, data.length);
+            damaged[i] ^= 0x01;
+            assertRejected(damaged);
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedData() {
+        byte[] data = FileDurationsStore.encode(new long[] { 1000, 2000, 3000 });
+        for (int length = 0; length < data.length; ++length)
+            assertRejected(Arrays.copyOf(data, length));
+    }
+
+    @Test
+    public void rejectsInvalidCounts() {
+        // Version 1, count, three durations as zig-zag encoded differences: 1, 0, 0.
+        assertRejected(withChecksum(1, 4, 2, 0, 0));
+        assertRejected(withChecksum(1, 2, 2, 0, 0));
+        assertRejected(withChecksum(1, 0x7f, 2, 0, 0));
+        assertArrayEquals(new long[] { 1, 1, 1 }, decode(withChecksum(1, 3, 2, 0, 0)));
+    }
+
+    @Test
+    public void rejectsUnsupportedVersion() {
+        assertRejected(withChecksum(2, 1, 2));
+    }
+
+    @Test
+    public void writesAndReadsBooks() {
+        FileDurationsStore store = new FileDurationsStore(temporaryFolder.getRoot());
+        // Ids are Base64.
+        String bookId = "ab/c+d";
+        assertFalse(store.contains(bookId));
+        assertNull(store.read(bookId));
+
+        long[] durations = { 1000, AudioBook.NO_DURATION, 3000 };
+        store.write(bookId, durations);
+        assertTrue(store.contains(bookId));
+        assertArrayEquals(durations, store.read(bookId));
+    }
+
+    private static long[] decode(byte[] data) {
+        try {
+            return FileDurationsStore.decode(data);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void assertRejected(byte[] data) {
+        try {
+            FileDurationsStore.decode(data);
+            fail("Decoded invalid data: " + Arrays.toString(data));
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private static byte[] withChecksum(int... bytes) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int b : bytes)
+            output.write(b);
+        CRC32 checksum = new CRC32();
+        checksum.update(output.toByteArray());
+        int value = (int) checksum.getValue();
+        output.write(value >>> 24);
+        output.write(value >>> 16);
+        output.write(value >>> 8);
+        output.write(value);
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,166 @@
+package com.studio4plus.homerplayer.model;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PositionJournalTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+    private File journalFile;
+
+    @Before
+    public void setUp() {
+        directory = temporaryFolder.getRoot();
+        journalFile = new File(directory, "positions.journal");
+    }
+
+    @Test
+    public void loadsNothingOnFirstStart() {
+        PositionJournal journal = new PositionJournal(directory);
+        assertFalse(journal.load());
+        assertNull(journal.get("book"));
+    }
+
+    @Test
+    public void replaysRecords() {
+        PositionJournal journal = new PositionJournal(directory);
+        journal.load();
+        journal.put("a", new PositionJournal.Entry(1, 1000, 0, null));
+        journal.put("b", new PositionJournal.Entry(2, 2000, 5000, ColourScheme.VIVID_YELLOW));
+        journal.put("a", new PositionJournal.Entry(3, 3000, 6000, null));
+
+        PositionJournal reloaded = new PositionJournal(directory);
+        assertTrue(reloaded.load());
+        assertEntry(reloaded.get("a"), 3, 3000, 6000, null);
+        assertEntry(reloaded.get("b"), 2, 2000, 5000, ColourScheme.VIVID_YELLOW);
+    }
+
+    @Test
+    public void truncatesTornLastRecord() throws IOException {
+        PositionJournal journal = new PositionJournal(directory);
+        journal.load();
+        journal.put("a", new PositionJournal.Entry(1, 1000, 0, null));
+        long validLength = journalFile.length();
+        journal.put("b", new PositionJournal.Entry(2, 2000, 0, null));
+        setLength(journalFile, journalFile.length() - 3);
+
+        PositionJournal reloaded = new PositionJournal(directory);
+        reloaded.load();
+        assertEntry(reloaded.get("a"), 1, 1000, 0, null);
+        assertNull(reloaded.get("b"));
+        assertEquals(validLength, journalFile.length());
+
+        // New records are appended after the last valid one.
+        reloaded.put("c", new PositionJournal.Entry(3, 3000, 0, null));
+        PositionJournal reloadedAgain = new PositionJournal(directory);
+        reloadedAgain.load();
+        assertEntry(reloadedAgain.get("a"), 1, 1000, 0, null);
+        assertEntry(reloadedAgain.get("c"), 3, 3000, 0, null);
+    }
+
+    @Test
+    public void dropsRecordsAfterChecksumMismatch() throws IOException {
+        PositionJournal journal = new PositionJournal(directory);
+        journal.load();
+        journal.put("a", new PositionJournal.Entry(1, 1000, 0, null));
+        long damagedOffset = journalFile.length() + 4;
+        journal.put("b", new PositionJournal.Entry(2, 2000, 0, null));
+        journal.put("c", new PositionJournal.Entry(3, 3000, 0, null));
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.seek(damagedOffset);
+            int value = file.read();
+            file.seek(damagedOffset);
+            file.write(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        PositionJournal reloaded = new PositionJournal(directory);
+        reloaded.load();
+        assertEntry(reloaded.get("a"), 1, 1000, 0, null);
+        assertNull(reloaded.get("b"));
+        assertNull(reloaded.get("c"));
+    }
+
+    @Test
+    public void compactsWithoutLosingEntries() {
+        PositionJournal journal = new PositionJournal(directory);
+        journal.load();
+        // Enough records to exceed the compaction threshold several times.
+        final int bookCount = 50;
+        final int updateCount = 5000;
+        for (int i = 0; i < updateCount; ++i) {
+            ColourScheme colourScheme = ColourScheme.values()[i % ColourScheme.values().length];
+            journal.put("book" + (i % bookCount),
+                        new PositionJournal.Entry(i, i * 1000L, i * 10L, colourScheme));
+        }
+        assertTrue(new File(directory, "positions").exists());
+        assertTrue(journalFile.length() < 64 * 1024);
+
+        PositionJournal reloaded = new PositionJournal(directory);
+        reloaded.load();
+        for (int i = updateCount - bookCount; i < updateCount; ++i) {
+            ColourScheme colourScheme = ColourScheme.values()[i % ColourScheme.values().length];
+            assertEntry(reloaded.get("book" + (i % bookCount)),
+                        i, i * 1000L, i * 10L, colourScheme);
+        }
+    }
+
+    @Test
+    public void putAllWritesSnapshot() {
+        PositionJournal journal = new PositionJournal(directory);
+        journal.load();
+        journal.put("a", new PositionJournal.Entry(1, 1000, 0, null));
+        Map<String, PositionJournal.Entry> entries = new HashMap<>();
+        entries.put("b", new PositionJournal.Entry(2, 2000, 0, null));
+        entries.put("c", new PositionJournal.Entry(3, 3000, 0, ColourScheme.VIVID_ORANGE));
+        journal.putAll(entries);
+        // Only the header is left in the journal.
+        assertEquals(8, journalFile.length());
+
+        PositionJournal reloaded = new PositionJournal(directory);
+        reloaded.load();
+        assertEntry(reloaded.get("a"), 1, 1000, 0, null);
+        assertEntry(reloaded.get("b"), 2, 2000, 0, null);
+        assertEntry(reloaded.get("c"), 3, 3000, 0, ColourScheme.VIVID_ORANGE);
+    }
+
+    private static void assertEntry(PositionJournal.Entry entry,
+                                    int fileIndex,
+                                    long seekPosition,
+                                    long lastPlayedTimeMs,
+                                    ColourScheme colourScheme) {
+        assertNotNull(entry);
+        assertEquals(fileIndex, entry.fileIndex);
+        assertEquals(seekPosition, entry.seekPosition);
+        assertEquals(lastPlayedTimeMs, entry.lastPlayedTimeMs);
+        assertEquals(colourScheme, entry.colourScheme);
+    }
+
+    private static void setLength(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ScanEnvironment for running the scanner on a plain JVM with a fixed list of audio books
+ * directories.
+ */
+class JvmScanEnvironment implements ScanEnvironment {
+
+    private final @NonNull List<File> audioBooksDirectories;
+    private final @Nullable MediaStoreIndex mediaStoreIndex;
+    private final boolean useSingleStat;
+
+    /**
+     * @param mediaStoreIndex the index returned instead of querying the MediaStore, no files
+     *                        are indexed if null.
+     * @param useSingleStat whether to read file attributes with one call like on API 21+
+     *                      or with the File methods like on older versions.
+     */
+    JvmScanEnvironment(@NonNull List<File> audioBooksDirectories,
+                       @Nullable MediaStoreIndex mediaStoreIndex,
+                       boolean useSingleStat) {
+        this.audioBooksDirectories = audioBooksDirectories;
+        this.mediaStoreIndex = mediaStoreIndex;
+        this.useSingleStat = useSingleStat;
+    }
+
+    @NonNull
+    @Override
+    public List<File> listAudioBooksDirectories() {
+        return audioBooksDirectories;
+    }
+
+    @NonNull
+    @Override
+    public MediaStoreIndex queryMediaStore() {
+        return mediaStoreIndex != null ? mediaStoreIndex : MediaStoreIndex.EMPTY;
+    }
+
+    @NonNull
+    @Override
+    public FilesystemAccess createFilesystemAccess(@NonNull AtomicInteger callCounter) {
+        return useSingleStat
+                ? new NioFilesystemAccess(callCounter)
+                : new FilesystemAccess(callCounter);
+    }
+}
@@ -0,0 +1,146 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a synthetic audio books library. The audio files are sparse so even large
+ * libraries take little disk space.
+ *
+ * Each storage root gets an audio books directory with its share of the books. The files of
+ * a book are spread over 2^depth leaf directories, e.g. "Book 12/Part 1/Part 2/Chapter 7.mp3"
+ * for depth 2. The names are not zero padded, suffixes are mixed, and some books contain
+ * non-audio files and hidden directories that are skipped by the scanner.
+ */
+class LibraryGenerator {
+
+    static class Shape {
+        final int storageRoots;
+        final int books;
+        final int filesPerBook;
+        final int depth;
+
+        Shape(int storageRoots, int books, int filesPerBook, int depth) {
+            this.storageRoots = storageRoots;
+            this.books = books;
+            this.filesPerBook = filesPerBook;
+            this.depth = depth;
+        }
+
+        int getAudioFileCount() {
+            return books * filesPerBook;
+        }
+
+        @Override
+        public String toString() {
+            return books + " books x " + filesPerBook + " files, depth " + depth + ", " +
+                    storageRoots + " storage roots";
+        }
+    }
+
+    static class GeneratedFile {
+        final @NonNull String path;
+        final long length;
+
+        GeneratedFile(@NonNull String path, long length) {
+            this.path = path;
+            this.length = length;
+        }
+    }
+
+    private static final String[] AUDIO_SUFFIXES = {".mp3", ".m4a", ".ogg", ".MP3"};
+    private static final int MAX_EXTRA_LENGTH = 64 * 1024;
+    // Every n-th book contains files and directories that the scanner skips.
+    private static final int EXTRAS_INTERVAL = 10;
+
+    private final @NonNull Random random;
+    private final @NonNull List<GeneratedFile> audioFiles = new ArrayList<>();
+
+    LibraryGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Returns the audio books directories, one per storage root.
+     */
+    @NonNull
+    List<File> generate(@NonNull File rootDirectory,
+                        @NonNull String audioBooksDirectoryName,
+                        @NonNull Shape shape) throws IOException {
+        List<File> audioBooksDirectories = new ArrayList<>(shape.storageRoots);
+        for (int i = 0; i < shape.storageRoots; ++i) {
+            File storageRoot = new File(rootDirectory, "storage" + i);
+            File audioBooksDirectory = new File(storageRoot, audioBooksDirectoryName);
+            mkdirs(audioBooksDirectory);
+            audioBooksDirectories.add(audioBooksDirectory);
+        }
+        for (int book = 0; book < shape.books; ++book) {
+            File audioBooksDirectory = audioBooksDirectories.get(book % shape.storageRoots);
+            generateBook(new File(audioBooksDirectory, "Book " + (book + 1)), book, shape);
+        }
+        return audioBooksDirectories;
+    }
+
+    /**
+     * All audio files generated so far.
+     */
+    @NonNull
+    List<GeneratedFile> getAudioFiles() {
+        return audioFiles;
+    }
+
+    private void generateBook(@NonNull File bookDirectory, int bookIndex, @NonNull Shape shape)
+            throws IOException {
+        List<File> leafDirectories = new ArrayList<>();
+        addLeafDirectories(bookDirectory, shape.depth, leafDirectories);
+        for (File directory : leafDirectories)
+            mkdirs(directory);
+
+        for (int i = 0; i < shape.filesPerBook; ++i) {
+            File directory = leafDirectories.get(i % leafDirectories.size());
+            String suffix = AUDIO_SUFFIXES[(bookIndex + i) % AUDIO_SUFFIXES.length];
+            File file = new File(directory, "Chapter " + (i + 1) + suffix);
+            long length = PruningRules.MIN_AUDIO_FILE_LENGTH + random.nextInt(MAX_EXTRA_LENGTH);
+            createSparseFile(file, length);
+            audioFiles.add(new GeneratedFile(file.getPath(), length));
+        }
+
+        if (bookIndex % EXTRAS_INTERVAL == 0) {
+            createSparseFile(new File(bookDirectory, "cover.jpg"), 4096);
+            createSparseFile(new File(bookDirectory, "info.txt"), 128);
+            File hiddenDirectory = new File(bookDirectory, ".thumbnails");
+            mkdirs(hiddenDirectory);
+            createSparseFile(new File(hiddenDirectory, "preview.mp3"), 4096);
+        }
+    }
+
+    private static void addLeafDirectories(
+            @NonNull File directory, int depth, @NonNull List<File> leafDirectories) {
+        if (depth == 0) {
+            leafDirectories.add(directory);
+        } else {
+            for (int i = 1; i <= 2; ++i)
+                addLeafDirectories(new File(directory, "Part " + i), depth - 1, leafDirectories);
+        }
+    }
+
+    private static void createSparseFile(@NonNull File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void mkdirs(@NonNull File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create directory: " + directory.getPath());
+    }
+}
@@ -0,0 +1,42 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The JVM counterpart of OsFilesystemAccess: reads all attributes of a file with a single
+ * stat call.
+ */
+class NioFilesystemAccess extends FilesystemAccess {
+
+    NioFilesystemAccess(@NonNull AtomicInteger callCounter) {
+        super(callCounter);
+    }
+
+    @Nullable
+    @Override
+    FileAttributes readAttributes(@NonNull File file, @NonNull String name) {
+        countCall();
+        try {
+            // Follows symlinks, like the File methods.
+            BasicFileAttributes attributes =
+                    Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            boolean isDirectory = attributes.isDirectory();
+            return new FileAttributes(
+                    file,
+                    name,
+                    isDirectory,
+                    isDirectory ? 0 : attributes.size(),
+                    attributes.lastModifiedTime().toMillis(),
+                    attributes.fileKey());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.studio4plus.homerplayer.filescanner;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans a generated library with ScanFilesTask and reports the wall time, files per second,
+ * allocated memory and filesystem calls of each kind of scan:
+ *  - cold: without a scan cache, like the first scan after installation,
+ *  - restart: with the scan cache loaded from its file, like the first scan after the app
+ *    has been started,
+ *  - warm: with the scan cache already in memory, like a rescan while the app is running,
+ * each one sequentially and with parallel scan workers.
+ *
+ * Options:
+ *   --preset small|medium|large|huge  10x10, 100x50, 500x100 or 2000x500 books x files
+ *   --books N, --files N              books and audio files per book
+ *   --depth N                         subdirectory levels in each book (default 0)
+ *   --roots N                         storage roots to spread the books over (default 2)
+ *   --threads N                       parallel scan workers (default 4)
+ *   --iterations N                    runs of each scan, the median is reported (default 5)
+ *   --dir PATH                        where to generate the library (default: a temporary
+ *                                     directory, deleted afterwards)
+ *   --legacy-stat                     read file attributes with the File methods, like on
+ *                                     Android versions before 5.0
+ *   --media-store                     create books not in the cache from an up to date
+ *                                     MediaStore index
+ */
+public class ScanBenchmark {
+
+    private static final String AUDIOBOOKS_DIRECTORY_NAME = "AudioBooks";
+    private static final String SCAN_CACHE_FILE_NAME = "scan_cache";
+    private static final long GENERATOR_SEED = 42;
+
+    private static final SavedStateLookup NO_SAVED_STATE = new SavedStateLookup() {
+        @Override
+        public boolean hasSavedState(@NonNull String bookId) {
+            return false;
+        }
+    };
+
+    private enum CacheState { COLD, RESTART, WARM }
+
+    private static class Result {
+        final long wallTimeNs;
+        final long allocatedBytes;
+        final int filesystemCalls;
+
+        Result(long wallTimeNs, long allocatedBytes, int filesystemCalls) {
+            this.wallTimeNs = wallTimeNs;
+            this.allocatedBytes = allocatedBytes;
+            this.filesystemCalls = filesystemCalls;
+        }
+    }
+
+    private final @NonNull LibraryGenerator.Shape shape;
+    private final @NonNull ScanEnvironment environment;
+    private final @NonNull File cacheFile;
+    private final @NonNull ExecutorService scanWorkers;
+    private final int iterations;
+
+    private @Nullable List<String> expectedBooks;
+
+    private ScanBenchmark(@NonNull LibraryGenerator.Shape shape,
+                          @NonNull ScanEnvironment environment,
+                          @NonNull File cacheFile,
+                          @NonNull ExecutorService scanWorkers,
+                          int iterations) {
+        this.shape = shape;
+        this.environment = environment;
+        this.cacheFile = cacheFile;
+        this.scanWorkers = scanWorkers;
+        this.iterations = iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int storageRoots = 2;
+        int books = 100;
+        int filesPerBook = 50;
+        int depth = 0;
+        int threads = 4;
+        int iterations = 5;
+        File directory = null;
+        boolean useSingleStat = true;
+        boolean useMediaStore = false;
+
+        for (int i = 0; i < args.length; ++i) {
+            String option = args[i];
+            switch (option) {
+                case "--preset":
+                    String preset = getValue(args, ++i, option);
+                    switch (preset) {
+                        case "small": books = 10; filesPerBook = 10; break;
+                        case "medium": books = 100; filesPerBook = 50; break;
+                        case "large": books = 500; filesPerBook = 100; break;
+                        case "huge": books = 2000; filesPerBook = 500; break;
+                        default: throw new IllegalArgumentException("Unknown preset: " + preset);
+                    }
+                    break;
+                case "--books": books = getIntValue(args, ++i, option); break;
+                case "--files": filesPerBook = getIntValue(args, ++i, option); break;
+                case "--depth": depth = getIntValue(args, ++i, option); break;
+                case "--roots": storageRoots = getIntValue(args, ++i, option); break;
+                case "--threads": threads = getIntValue(args, ++i, option); break;
+                case "--iterations": iterations = getIntValue(args, ++i, option); break;
+                case "--dir": directory = new File(getValue(args, ++i, option)); break;
+                case "--legacy-stat": useSingleStat = false; break;
+                case "--media-store": useMediaStore = true; break;
+                default: throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+
+        if (depth > PruningRules.MAX_DIRECTORY_DEPTH)
+            throw new IllegalArgumentException(
+                    "The scanner skips directories deeper than " + PruningRules.MAX_DIRECTORY_DEPTH);
+        boolean isTemporary = directory == null;
+        if (isTemporary)
+            directory = Files.createTempDirectory("scan-benchmark").toFile();
+
+        LibraryGenerator.Shape shape =
+                new LibraryGenerator.Shape(storageRoots, books, filesPerBook, depth);
+        ThreadPoolExecutor scanWorkers = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        // Started up front so that the allocations of all threads can be measured.
+        scanWorkers.prestartAllCoreThreads();
+        try {
+            System.out.println("Generating " + shape + " in " + directory.getPath());
+            LibraryGenerator generator = new LibraryGenerator(GENERATOR_SEED);
+            List<File> audioBooksDirectories =
+                    generator.generate(directory, AUDIOBOOKS_DIRECTORY_NAME, shape);
+            MediaStoreIndex mediaStoreIndex = useMediaStore
+                    ? createMediaStoreIndex(generator.getAudioFiles())
+                    : null;
+
+            ScanEnvironment environment =
+                    new JvmScanEnvironment(audioBooksDirectories, mediaStoreIndex, useSingleStat);
+            ScanBenchmark benchmark = new ScanBenchmark(
+                    shape,
+                    environment,
+                    new File(directory, SCAN_CACHE_FILE_NAME),
+                    scanWorkers,
+                    iterations);
+            benchmark.run();
+        } finally {
+            scanWorkers.shutdown();
+            if (isTemporary)
+                deleteRecursively(directory);
+        }
+    }
+
+    private void run() throws Exception {
+        System.out.println(String.format(Locale.US, "%-20s %10s %12s %12s %10s",
+                "scan", "time [ms]", "files/s", "alloc [MB]", "fs calls"));
+        for (CacheState cacheState : CacheState.values()) {
+            report(cacheState, false);
+            report(cacheState, true);
+        }
+    }
+
+    private void report(@NonNull CacheState cacheState, boolean isParallel) throws Exception {
+        // The warm scans reuse a cache filled by a scan that is not measured.
+        ScanCache warmCache = new ScanCache(cacheFile);
+        if (cacheState == CacheState.WARM)
+            scan(warmCache, isParallel);
+
+        List<Result> results = new ArrayList<>(iterations);
+        for (int i = 0; i < iterations; ++i) {
+            ScanCache scanCache;
+            if (cacheState == CacheState.WARM) {
+                scanCache = warmCache;
+            } else {
+                if (cacheState == CacheState.COLD && cacheFile.exists() && !cacheFile.delete())
+                    throw new IOException("Unable to delete: " + cacheFile.getPath());
+                scanCache = new ScanCache(cacheFile);
+            }
+            results.add(scan(scanCache, isParallel));
+        }
+
+        Collections.sort(results, new Comparator<Result>() {
+            @Override
+            public int compare(Result lhs, Result rhs) {
+                return Long.compare(lhs.wallTimeNs, rhs.wallTimeNs);
+            }
+        });
+        Result median = results.get(results.size() / 2);
+        double seconds = median.wallTimeNs / 1e9;
+        String name = cacheState.name().toLowerCase(Locale.US) +
+                (isParallel ? " parallel" : " sequential");
+        System.out.println(String.format(Locale.US, "%-20s %10.1f %12.0f %12s %10d",
+                name,
+                median.wallTimeNs / 1e6,
+                shape.getAudioFileCount() / seconds,
+                median.allocatedBytes >= 0
+                        ? String.format(Locale.US, "%.1f", median.allocatedBytes / 1e6)
+                        : "n/a",
+                median.filesystemCalls));
+    }
+
+    @NonNull
+    private Result scan(@NonNull ScanCache scanCache, boolean isParallel) throws Exception {
+        ScanFilesTask task = new ScanFilesTask(
+                environment, scanCache, NO_SAVED_STATE, isParallel ? scanWorkers : null, null);
+        long allocatedBytesBefore = getAllocatedBytes();
+        long startTimeNs = System.nanoTime();
+        List<FileSet> fileSets = task.call();
+        long wallTimeNs = System.nanoTime() - startTimeNs;
+        long allocatedBytesAfter = getAllocatedBytes();
+
+        verify(fileSets);
+        long allocatedBytes = allocatedBytesBefore >= 0 && allocatedBytesAfter >= 0
+                ? allocatedBytesAfter - allocatedBytesBefore
+                : -1;
+        return new Result(wallTimeNs, allocatedBytes, task.getStats().filesystemCalls.get());
+    }
+
+    // All scans must find the same books with the same ids, in the same order.
+    private void verify(@NonNull List<FileSet> fileSets) {
+        List<String> books = new ArrayList<>(fileSets.size());
+        int fileCount = 0;
+        for (FileSet fileSet : fileSets) {
+            books.add(fileSet.directory.getPath() + ": " + fileSet.id);
+            fileCount += fileSet.files.size();
+        }
+        if (fileCount != shape.getAudioFileCount()) {
+            throw new IllegalStateException(
+                    "Found " + fileCount + " files, expected " + shape.getAudioFileCount());
+        }
+        if (expectedBooks == null)
+            expectedBooks = books;
+        else if (!expectedBooks.equals(books))
+            throw new IllegalStateException("The scan result differs from the first scan");
+    }
+
+    // Returns the bytes allocated by all threads so far or -1 if it can't be measured.
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        com.sun.management.ThreadMXBean allocationBean =
+                (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocationBean.isThreadAllocatedMemorySupported() ||
+                !allocationBean.isThreadAllocatedMemoryEnabled())
+            return -1;
+
+        long total = 0;
+        for (long allocated : allocationBean.getThreadAllocatedBytes(threadBean.getAllThreadIds()))
+            total += Math.max(0, allocated);
+        return total;
+    }
+
+    // Indexes all generated files as added after the library has been generated so that the
+    // index is up to date.
+    @NonNull
+    private static MediaStoreIndex createMediaStoreIndex(
+            @NonNull List<LibraryGenerator.GeneratedFile> files) {
+        long dateAddedSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 1;
+        MediaStoreIndex.Builder builder = new MediaStoreIndex.Builder(AUDIOBOOKS_DIRECTORY_NAME);
+        for (LibraryGenerator.GeneratedFile file : files)
+            builder.addFile(file.path, file.length, 0, dateAddedSeconds);
+        return builder.build();
+    }
+
+    @NonNull
+    private static String getValue(@NonNull String[] args, int index, @NonNull String option) {
+        if (index >= args.length)
+            throw new IllegalArgumentException("Missing value for " + option);
+        return args[index];
+    }
+
+    private static int getIntValue(@NonNull String[] args, int index, @NonNull String option) {
+        return Integer.parseInt(getValue(args, index, option));
+    }
+
+    private static void deleteRecursively(@NonNull File directory) throws IOException {
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e)
+                    throws IOException {
+                if (e != null)
+                    throw e;
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}